@@ -0,0 +1,466 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors namespaces from one router onto another. Messages published under each source prefix
+ * are received through a raw subscription on the source client and republished, still encoded,
+ * under the corresponding target prefix on the target client.
+ *
+ * Messages are relayed by a dedicated thread in batches that share a socket flush. At most
+ * maxInFlight publishes await a response from the target router at once. When that limit is
+ * reached the relay queue fills, and then the source client stops reading, so a slow target
+ * throttles the source router rather than exhausting memory. If either connection is lost it is
+ * replaced with a new client from its factory, and the source subscriptions are renewed. If the
+ * source router rejects a subscription, the source connection is replaced after the reconnect
+ * delay and every subscription is tried again.
+ * Messages queued while the target is down are relayed once it is back; a batch whose publish
+ * failed is sent again in full, so a message may be relayed more than once.
+ */
+public class BosswaveBridge implements AutoCloseable {
+    private static final long POLL_MILLIS = 100;
+    private static final int PREPARED_CACHE_SIZE = 1024;
+
+    // Supplies connected clients with their entity already set
+    public interface ClientFactory {
+        BosswaveClient connect() throws IOException;
+    }
+
+    private final ClientFactory sourceFactory;
+    private final ClientFactory targetFactory;
+    private final List<Mapping> mappings;
+    private final SubscribeRequest subscribeTemplate;
+    private final PublishRequest publishTemplate;
+    private final int maxInFlight;
+    private final int batchSize;
+    private final long reconnectDelayMillis;
+
+    private final BlockingQueue<Relayed> queue;
+    private final RawMessageHandler sourceHandler;
+    private final Thread relayThread;
+    private volatile boolean closed;
+
+    // Written only by the relay thread
+    private volatile BosswaveClient source;
+    private volatile BosswaveClient target;
+    private volatile Semaphore inFlight;
+    // Counts down as the source router acknowledges each subscription
+    private volatile CountDownLatch subscriptions;
+    // A source client that had a subscription rejected, and must be replaced
+    private volatile BosswaveClient rejectedSource;
+    private ResponseHandler targetResponseHandler;
+    private final Map<String, PreparedPublish> preparedPublishes;
+
+    private final AtomicLong relayedCount;
+    private final AtomicLong relayedBytes;
+    private final AtomicLong failedCount;
+    private final AtomicLong reconnectCount;
+    private final AtomicLong rejectedSubscriptionCount;
+    private final LatencyHistogram relayLag;
+
+    private static class Mapping {
+        private final String sourcePrefix;
+        private final String targetPrefix;
+
+        private Mapping(String sourcePrefix, String targetPrefix) {
+            this.sourcePrefix = sourcePrefix;
+            this.targetPrefix = targetPrefix;
+        }
+    }
+
+    private static class Relayed {
+        private final RawMessage message;
+        private final long receivedNanos;
+
+        private Relayed(RawMessage message, long receivedNanos) {
+            this.message = message;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    // Instantiate this class with BosswaveBridge.Builder
+    private BosswaveBridge(ClientFactory sourceFactory, ClientFactory targetFactory, List<Mapping> mappings,
+                           SubscribeRequest subscribeTemplate, PublishRequest publishTemplate, int maxInFlight,
+                           int batchSize, long reconnectDelayMillis) {
+        this.sourceFactory = sourceFactory;
+        this.targetFactory = targetFactory;
+        this.mappings = new ArrayList<>(mappings);
+        // The longest matching source prefix wins
+        Collections.sort(this.mappings, new Comparator<Mapping>() {
+            @Override
+            public int compare(Mapping a, Mapping b) {
+                return b.sourcePrefix.length() - a.sourcePrefix.length();
+            }
+        });
+        this.subscribeTemplate = subscribeTemplate;
+        this.publishTemplate = publishTemplate;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+        this.reconnectDelayMillis = reconnectDelayMillis;
+
+        queue = new ArrayBlockingQueue<>(maxInFlight);
+        sourceHandler = new RawMessageHandler() {
+            @Override
+            public void onRawMessage(RawMessage message) {
+                // Runs on the source client's listener thread, which close does not interrupt
+                Relayed relayed = new Relayed(message, System.nanoTime());
+                try {
+                    while (!closed) {
+                        if (queue.offer(relayed, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        relayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                relay();
+            }
+        }, "bosswave-bridge");
+        relayThread.setDaemon(true);
+        preparedPublishes = new LinkedHashMap<String, PreparedPublish>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedPublish> eldest) {
+                return size() > PREPARED_CACHE_SIZE;
+            }
+        };
+
+        relayedCount = new AtomicLong(0);
+        relayedBytes = new AtomicLong(0);
+        failedCount = new AtomicLong(0);
+        reconnectCount = new AtomicLong(0);
+        rejectedSubscriptionCount = new AtomicLong(0);
+        relayLag = new LatencyHistogram();
+    }
+
+    // Connects both sides and starts relaying. Connection failures are retried in the background.
+    public void start() {
+        relayThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        relayThread.interrupt();
+        try {
+            relayThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeQuietly(source);
+        closeQuietly(target);
+    }
+
+    // True once both sides are connected and every source subscription has been acknowledged
+    public boolean isConnected() {
+        BosswaveClient s = source;
+        BosswaveClient t = target;
+        CountDownLatch latch = subscriptions;
+        return s != null && s.isConnected() && t != null && t.isConnected() && latch.getCount() == 0;
+    }
+
+    // Messages published to the target router
+    public long getRelayedCount() {
+        return relayedCount.get();
+    }
+
+    // Encoded object bytes of the messages published to the target router
+    public long getRelayedBytes() {
+        return relayedBytes.get();
+    }
+
+    // Publishes the target router answered with an error
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    // Connections replaced after being lost, on either side
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    // Source subscriptions the source router answered with an error
+    public long getRejectedSubscriptionCount() {
+        return rejectedSubscriptionCount.get();
+    }
+
+    // Messages received from the source waiting to be published
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    // Publishes waiting for a response from the target router
+    public int getInFlightCount() {
+        Semaphore permits = inFlight;
+        return (permits == null ? 0 : maxInFlight - permits.availablePermits());
+    }
+
+    // Time from receiving a message on the source client to publishing it on the target, in nanoseconds
+    public LatencyHistogram getRelayLag() {
+        return relayLag;
+    }
+
+    private void relay() {
+        List<Relayed> batch = new ArrayList<>(batchSize);
+        List<PreparedPublish> targets = new ArrayList<>(batchSize);
+        List<RawMessage> messages = new ArrayList<>(batchSize);
+        // The messages of the batch under a mapped prefix, whose lag is recorded once they are published
+        List<Relayed> published = new ArrayList<>(batchSize);
+        while (!closed) {
+            try {
+                ensureConnected();
+                if (batch.isEmpty()) {
+                    Relayed first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+
+                long bytes = 0;
+                for (Relayed relayed : batch) {
+                    String uri = rewrite(relayed.message.getUri());
+                    if (uri != null) {
+                        targets.add(preparedFor(uri));
+                        messages.add(relayed.message);
+                        published.add(relayed);
+                        bytes += relayed.message.getObjectsLength();
+                    }
+                }
+                Semaphore permits = inFlight;
+                while (!permits.tryAcquire(messages.size(), POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed || !target.isConnected()) {
+                        throw new IOException("Target connection lost");
+                    }
+                }
+                long now = System.nanoTime();
+                try {
+                    target.publishRaw(targets, messages, targetResponseHandler);
+                } catch (IOException e) {
+                    // The batch is sent again with permits acquired afresh
+                    permits.release(messages.size());
+                    throw e;
+                }
+                for (Relayed relayed : published) {
+                    relayLag.recordValue(now - relayed.receivedNanos);
+                }
+                relayedCount.addAndGet(messages.size());
+                relayedBytes.addAndGet(bytes);
+                batch.clear();
+            } catch (IOException e) {
+                // The batch is kept and sent again once the connection is replaced
+                try {
+                    Thread.sleep(reconnectDelayMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                targets.clear();
+                messages.clear();
+                published.clear();
+            }
+        }
+    }
+
+    private void ensureConnected() throws IOException {
+        if (target == null || !target.isConnected()) {
+            if (target != null) {
+                closeQuietly(target);
+                target = null;
+                reconnectCount.incrementAndGet();
+            }
+            BosswaveClient client = connect(targetFactory);
+            // Responses to publishes on a lost connection never arrive, so start with fresh permits
+            final Semaphore permits = new Semaphore(maxInFlight);
+            targetResponseHandler = new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    permits.release();
+                    if (!result.getStatus().equals("okay")) {
+                        failedCount.incrementAndGet();
+                    }
+                }
+            };
+            inFlight = permits;
+            target = client;
+        }
+        if (source != null && source == rejectedSource) {
+            closeQuietly(source);
+            source = null;
+            // Retried on a new connection after the reconnect delay
+            throw new IOException("Source router rejected a subscription");
+        }
+        if (source == null || !source.isConnected()) {
+            if (source != null) {
+                closeQuietly(source);
+                source = null;
+                reconnectCount.incrementAndGet();
+            }
+            final BosswaveClient client = connect(sourceFactory);
+            final CountDownLatch latch = new CountDownLatch(mappings.size());
+            ResponseHandler onSubscribed = new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    if (result.getStatus().equals("okay")) {
+                        latch.countDown();
+                    } else {
+                        rejectedSubscriptionCount.incrementAndGet();
+                        rejectedSource = client;
+                    }
+                }
+            };
+            subscriptions = latch;
+            boolean subscribed = false;
+            try {
+                for (Mapping mapping : mappings) {
+                    SubscribeRequest request = new SubscribeRequest.Builder(subscribeTemplate)
+                            .setUri(mapping.sourcePrefix + "/*")
+                            .build();
+                    client.subscribeRaw(request, onSubscribed, sourceHandler);
+                }
+                subscribed = true;
+            } finally {
+                if (!subscribed) {
+                    closeQuietly(client);
+                }
+            }
+            source = client;
+        }
+    }
+
+    // A client that fails its handshake throws a RuntimeException, which is retried like any other failure
+    private static BosswaveClient connect(ClientFactory factory) throws IOException {
+        try {
+            return factory.connect();
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to connect", e);
+        }
+    }
+
+    // Returns null if the URI is not under any source prefix
+    private String rewrite(String uri) {
+        for (Mapping mapping : mappings) {
+            int length = mapping.sourcePrefix.length();
+            if (uri.startsWith(mapping.sourcePrefix) && (uri.length() == length || uri.charAt(length) == '/')) {
+                return mapping.targetPrefix + uri.substring(length);
+            }
+        }
+        return null;
+    }
+
+    private PreparedPublish preparedFor(String uri) {
+        PreparedPublish prepared = preparedPublishes.get(uri);
+        if (prepared == null) {
+            prepared = new PreparedPublish(new PublishRequest.Builder(publishTemplate).setUri(uri).build());
+            preparedPublishes.put(uri, prepared);
+        }
+        return prepared;
+    }
+
+    private static void closeQuietly(BosswaveClient client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // The connection is being abandoned anyway
+            }
+        }
+    }
+
+    // Removes a trailing "/*" or "/", since whole namespaces under a prefix are mirrored
+    private static String normalizePrefix(String prefix) {
+        if (prefix.endsWith("/*")) {
+            prefix = prefix.substring(0, prefix.length() - 2);
+        }
+        while (prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        return prefix;
+    }
+
+    public static class Builder {
+        private final ClientFactory sourceFactory;
+        private final ClientFactory targetFactory;
+        private final List<Mapping> mappings;
+        private SubscribeRequest subscribeTemplate;
+        private PublishRequest publishTemplate;
+        private int maxInFlight;
+        private int batchSize;
+        private long reconnectDelayMillis;
+
+        public Builder(ClientFactory sourceFactory, ClientFactory targetFactory) {
+            this.sourceFactory = sourceFactory;
+            this.targetFactory = targetFactory;
+            mappings = new ArrayList<>();
+            subscribeTemplate = new SubscribeRequest.Builder("").build();
+            publishTemplate = new PublishRequest.Builder("").build();
+            maxInFlight = 256;
+            batchSize = 32;
+            reconnectDelayMillis = 1000;
+        }
+
+        // Mirrors everything under sourcePrefix on the source router to targetPrefix on the target
+        public Builder addMapping(String sourcePrefix, String targetPrefix) {
+            mappings.add(new Mapping(normalizePrefix(sourcePrefix), normalizePrefix(targetPrefix)));
+            return this;
+        }
+
+        // Supplies the access chain and other options of the source subscriptions; its URI is ignored
+        public Builder setSubscribeTemplate(SubscribeRequest template) {
+            subscribeTemplate = template;
+            return this;
+        }
+
+        // Supplies the access chain and other options of the target publishes; its URI and objects are ignored
+        public Builder setPublishTemplate(PublishRequest template) {
+            publishTemplate = template;
+            return this;
+        }
+
+        public Builder setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        // The most messages written to the target with a single flush
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder setReconnectDelay(long millis) {
+            reconnectDelayMillis = millis;
+            return this;
+        }
+
+        public BosswaveBridge build() {
+            if (mappings.isEmpty()) {
+                throw new IllegalStateException("A bridge needs at least one mapping");
+            }
+            if (maxInFlight <= 0 || batchSize <= 0 || batchSize > maxInFlight) {
+                throw new IllegalStateException("Batch size must be positive and no more than max in flight");
+            }
+            return new BosswaveBridge(sourceFactory, targetFactory, mappings, subscribeTemplate, publishTemplate,
+                                      maxInFlight, batchSize, reconnectDelayMillis);
+        }
+    }
+}
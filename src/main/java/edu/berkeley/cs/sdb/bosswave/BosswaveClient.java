@@ -1,20 +1,23 @@
 package edu.berkeley.cs.sdb.bosswave;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BosswaveClient implements AutoCloseable {
-    private static final SimpleDateFormat Rfc3339 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+    private static final int DEFAULT_STREAM_CAPACITY = 1024;
+    private static final int DEFAULT_LANE_CAPACITY_BYTES = 4 * 1024 * 1024;
 
-    private final String hostName;
-    private final int port;
+    private final Transport transport;
+    private final BWListener listener;
     private final Thread listenerThread;
 
     private final Map<Integer, ResponseHandler> responseHandlers;
@@ -23,15 +26,53 @@ public class BosswaveClient implements AutoCloseable {
     private final Object messageHandlersLock;
     private final Map<Integer, ListResultHandler> listResultHandlers;
     private final Object listResultHandlersLock;
+    private final Map<Integer, ChainResultHandler> chainResultHandlers;
+    private final Object chainResultHandlersLock;
 
-    private Socket socket;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    // Set once the listener stops reading, whether the client was closed or the connection lost
+    private volatile boolean disconnected;
     private BufferedInputStream inStream;
     private BufferedOutputStream outStream;
+    private final Object outStreamLock = new Object();
+
+    private volatile LastValueCache queryCache;
+    private int bulkThresholdBytes = -1;
+    private int maxQueuedLaneBytes;
+    private volatile OutboundLanes outboundLanes;
+
+    private final List<MetricsListener> metricsListeners = new CopyOnWriteArrayList<>();
+    // Send times of requests awaiting a response, only tracked while a metrics listener is present
+    private final Map<Integer, RequestTiming> requestTimings = new ConcurrentHashMap<>();
+    private volatile ClientMetrics metrics;
+    private volatile WireCapture wireCapture;
+    private final Object captureLock = new Object();
+    private volatile HandlerWatchdog handlerWatchdog;
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile DroppedFrameHandler droppedFrameHandler;
+    // Overload policies of subscriptions that do not block, only used with an inbound buffer
+    private final Map<Integer, OverloadPolicy> overloadPolicies = new ConcurrentHashMap<>();
+    private InboundBuffer inboundBuffer;
+    private final AtomicLong coalescedMessages = new AtomicLong();
+    private final AtomicLong duplicateMessages = new AtomicLong();
+    // Payload and routing object filters of subscriptions that do not want every object
+    private final Map<Integer, ObjectFilter> objectFilters = new ConcurrentHashMap<>();
+    private final Map<Integer, RawMessageHandler> rawMessageHandlers = new ConcurrentHashMap<>();
+    private Thread dispatchThread;
 
     public BosswaveClient(String hostName, int port) {
-        this.hostName = hostName;
-        this.port = port;
-        listenerThread = new Thread(new BWListener());
+        this(new TcpTransport(hostName, port));
+    }
+
+    /**
+     * Creates a client that reaches its router through the given transport, e.g. a
+     * {@link UnixDomainSocketTransport} for a router agent on the same host.
+     */
+    public BosswaveClient(Transport transport) {
+        this.transport = transport;
+        listener = new BWListener();
+        listenerThread = new Thread(listener);
 
         responseHandlers = new HashMap<>();
         responseHandlerLock = new Object();
@@ -39,12 +80,16 @@ public class BosswaveClient implements AutoCloseable {
         messageHandlersLock = new Object();
         listResultHandlers  = new HashMap<>();
         listResultHandlersLock = new Object();
+        chainResultHandlers = new HashMap<>();
+        chainResultHandlersLock = new Object();
     }
 
     public void connect() throws IOException {
-        socket = new Socket(hostName, port);
-        inStream = new BufferedInputStream(socket.getInputStream());
-        outStream = new BufferedOutputStream(socket.getOutputStream());
+        Object connectEvent = FlightEvents.begin(FlightEvents.CONNECT);
+        transport.connect();
+        connected = true;
+        inStream = new BufferedInputStream(new CountingInputStream(transport.getInputStream()));
+        outStream = new BufferedOutputStream(new CountingOutputStream(transport.getOutputStream()));
 
         // Check that we receive a well-formed acknowledgment
         try {
@@ -54,18 +99,216 @@ public class BosswaveClient implements AutoCloseable {
                 throw new RuntimeException("Received invalid Bosswave ACK");
             }
         } catch (InvalidFrameException e) {
-            socket.close();
+            transport.close();
             throw new RuntimeException(e);
         }
+        if (connectEvent != null) {
+            FlightEvents.commit(connectEvent, transport.toString());
+        }
 
+        if (bulkThresholdBytes >= 0) {
+            outboundLanes = new OutboundLanes(outStream, maxQueuedLaneBytes);
+            outboundLanes.start();
+        }
+        if (dispatchThread != null) {
+            dispatchThread.start();
+        }
         listenerThread.start();
     }
 
+    /**
+     * Decouples reading frames from running handlers with a bounded buffer and a separate dispatch
+     * thread. When the buffer is full, a subscription's messages are handled according to its
+     * {@link OverloadPolicy}; all other frames wait for room. Must be called before connecting,
+     * and before setting a handler watchdog.
+     * @param capacity The number of decoded frames the buffer holds
+     */
+    public synchronized void enableInboundBuffer(int capacity) {
+        if (connected) {
+            throw new IllegalStateException("The inbound buffer must be enabled before connecting");
+        }
+        if (handlerWatchdog != null) {
+            throw new IllegalStateException("The inbound buffer must be enabled before setting a watchdog");
+        }
+        final InboundBuffer buffer = new InboundBuffer(capacity);
+        dispatchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Frame frame;
+                    while ((frame = buffer.take()) != null) {
+                        listener.dispatch(frame);
+                    }
+                } catch (InterruptedException e) {
+                    // The client is closing
+                }
+            }
+        }, "bosswave-dispatcher");
+        dispatchThread.setDaemon(true);
+        inboundBuffer = buffer;
+    }
+
+    // Returns null unless the inbound buffer is enabled
+    public InboundBufferStats getInboundBufferStats() {
+        InboundBuffer buffer = inboundBuffer;
+        return (buffer == null ? null : buffer.getStats());
+    }
+
+    /**
+     * Sends outbound frames through two priority lanes written by a dedicated thread. Control
+     * frames, such as subscribes, queries and small publishes, are always written before any
+     * queued bulk publish. Frames cannot be interleaved on the wire, so a control frame waits at
+     * most for the bulk frame currently being written. Must be called before connecting.
+     * @param bulkThresholdBytes Publishes whose encoded frame is at least this long use the bulk lane
+     * @see #enablePriorityLanes(int, int)
+     */
+    public void enablePriorityLanes(int bulkThresholdBytes) {
+        enablePriorityLanes(bulkThresholdBytes, DEFAULT_LANE_CAPACITY_BYTES);
+    }
+
+    /**
+     * Like {@link #enablePriorityLanes(int)}, with a limit on the bytes each lane may hold. A send
+     * that would overfill its lane blocks until the writer thread has made room.
+     * @param laneCapacityBytes The number of encoded bytes each lane may hold
+     */
+    public void enablePriorityLanes(int bulkThresholdBytes, int laneCapacityBytes) {
+        if (connected) {
+            throw new IllegalStateException("Priority lanes must be enabled before connecting");
+        }
+        if (bulkThresholdBytes < 0) {
+            throw new IllegalArgumentException("Negative bulk threshold");
+        }
+        if (laneCapacityBytes <= 0) {
+            throw new IllegalArgumentException("Lane capacity must be positive");
+        }
+        this.bulkThresholdBytes = bulkThresholdBytes;
+        maxQueuedLaneBytes = laneCapacityBytes;
+    }
+
+    // Returns null unless priority lanes are enabled and the client is connected
+    public LaneStats getControlLaneStats() {
+        OutboundLanes lanes = outboundLanes;
+        return (lanes == null ? null : lanes.getControlStats());
+    }
+
+    // Returns null unless priority lanes are enabled and the client is connected
+    public LaneStats getBulkLaneStats() {
+        OutboundLanes lanes = outboundLanes;
+        return (lanes == null ? null : lanes.getBulkStats());
+    }
+
+    /**
+     * Starts collecting frame and byte counts, request-to-response latencies, and handler and
+     * queue sizes. Calling this again returns the same metrics.
+     * @see ClientMetrics#registerMBean(String)
+     */
+    public synchronized ClientMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ClientMetrics(this);
+            addMetricsListener(metrics);
+        }
+        return metrics;
+    }
+
+    public void addMetricsListener(MetricsListener listener) {
+        metricsListeners.add(listener);
+    }
+
+    public void removeMetricsListener(MetricsListener listener) {
+        metricsListeners.remove(listener);
+        if (metricsListeners.isEmpty()) {
+            requestTimings.clear();
+        }
+    }
+
+    /**
+     * Starts recording every frame sent and received to a capture, until stopCapture is called.
+     * While capturing, each outbound frame is encoded into a buffer before it is written. With
+     * priority lanes enabled, outbound frames are recorded in the order they are queued. A capture
+     * that fails to write stops itself, and the client carries on without it.
+     * @see WireCapture#setFailureListener(WireCapture.FailureListener)
+     */
+    public void startCapture(WireCapture capture) {
+        synchronized (captureLock) {
+            wireCapture = capture;
+        }
+    }
+
+    // Stops recording frames. The capture is not closed.
+    public void stopCapture() {
+        synchronized (captureLock) {
+            wireCapture = null;
+        }
+    }
+
+    // Forgets a capture that has closed or failed, unless another has been started since
+    private void captureStopped(WireCapture capture) {
+        synchronized (captureLock) {
+            if (wireCapture == capture) {
+                wireCapture = null;
+            }
+        }
+    }
+
+    /**
+     * Times every handler callback this client runs against the watchdog's budget. A watchdog can
+     * only watch one client, and is stopped when the client is closed.
+     */
+    public synchronized void setHandlerWatchdog(HandlerWatchdog watchdog) {
+        if (handlerWatchdog != null) {
+            throw new IllegalStateException("A handler watchdog is already set");
+        }
+        watchdog.attach(dispatchThread != null ? dispatchThread : listenerThread);
+        handlerWatchdog = watchdog;
+    }
+
+    // Called for each malformed frame the listener skips over
+    public void setDroppedFrameHandler(DroppedFrameHandler handler) {
+        droppedFrameHandler = handler;
+    }
+
+    // The number of messages replaced by newer ones on subscriptions with a conflation interval
+    public long getCoalescedMessageCount() {
+        return coalescedMessages.get();
+    }
+
+    // The number of messages discarded on subscriptions with a deduplication window
+    public long getDuplicateMessageCount() {
+        return duplicateMessages.get();
+    }
+
+    // False before connecting, after closing, and once the router has closed the connection
+    public boolean isConnected() {
+        return connected && !disconnected && !closed;
+    }
+
+    // The number of malformed frames the listener has discarded
+    public long getDroppedFrameCount() {
+        return droppedFrames.get();
+    }
+
     @Override
     public void close() throws IOException {
+        OutboundLanes lanes = outboundLanes;
+        if (lanes != null) {
+            lanes.stop();
+        }
+        ClientMetrics m = metrics;
+        if (m != null) {
+            m.unregisterMBean();
+        }
+        HandlerWatchdog watchdog = handlerWatchdog;
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+        InboundBuffer buffer = inboundBuffer;
+        if (buffer != null) {
+            buffer.stop();
+        }
+        closed = true;
         inStream.close();
         outStream.close();
-        socket.close();
+        transport.close();
     }
 
     public void setEntityFile(File f, ResponseHandler handler) throws IOException {
@@ -79,6 +322,11 @@ public class BosswaveClient implements AutoCloseable {
     }
 
     private void setEntity(byte[] keyFile, ResponseHandler handler) throws IOException {
+        // Cached values were queried as the previous entity
+        LastValueCache cache = queryCache;
+        if (cache != null) {
+            cache.clear();
+        }
         int seqNo = Frame.generateSequenceNumber();
         Frame.Builder builder = new Frame.Builder(Command.SET_ENTITY, seqNo);
         PayloadObject.Type type = new PayloadObject.Type(new byte[]{1, 0, 1, 2});
@@ -86,9 +334,8 @@ public class BosswaveClient implements AutoCloseable {
         builder.addPayloadObject(po);
 
         Frame frame = builder.build();
-        frame.writeToStream(outStream);
-        outStream.flush();
         installResponseHandler(seqNo, handler);
+        writeFrame(frame);
     }
 
     public void publish(PublishRequest request, ResponseHandler handler) throws IOException {
@@ -98,25 +345,167 @@ public class BosswaveClient implements AutoCloseable {
         }
         int seqNo = Frame.generateSequenceNumber();
         Frame.Builder builder = new Frame.Builder(command, seqNo);
+        addPublishHeaders(builder, request);
 
-        String uri = request.getUri();
-        builder.addKVPair("uri", uri);
+        for (RoutingObject ro : request.getRoutingObjects()) {
+            builder.addRoutingObject(ro);
+        }
+        for (PayloadObject po : request.getPayloadObjects()) {
+            builder.addPayloadObject(po);
+        }
 
-        if (request.isPersist()) {
-            builder.setCommand(Command.PERSIST);
+        Frame f = builder.build();
+        installResponseHandler(seqNo, handler);
+        writeFrame(f);
+    }
+
+    /**
+     * Publishes new payload objects using a request whose headers and routing objects were
+     * encoded in advance. Only the sequence number and payload objects are encoded per call.
+     * @param prepared The prepared request, which may be shared between threads
+     * @param payloadObjects The payload objects to publish
+     * @param handler Receives the router's response, may be null
+     */
+    public void publish(PreparedPublish prepared, List<PayloadObject> payloadObjects, ResponseHandler handler)
+            throws IOException {
+        publishPrepared(prepared, payloadObjects, null, handler);
+    }
+
+    /**
+     * Publishes the still-encoded objects of a message from a raw subscription, for example to
+     * forward it to another URI or through another client. Only the key/value headers are
+     * written fresh; the objects are copied to the socket as they were received. The prepared
+     * request's routing objects, if any, are sent ahead of the message's objects.
+     * @param prepared Supplies the URI and other headers of the publish
+     * @param message The message to forward
+     * @param handler Receives the router's response, may be null
+     */
+    public void publishRaw(PreparedPublish prepared, RawMessage message, ResponseHandler handler) throws IOException {
+        publishPrepared(prepared, null, message, handler);
+    }
+
+    // Publishes a raw message using the headers and routing objects of a request; its payload objects are ignored
+    public void publishRaw(PublishRequest request, RawMessage message, ResponseHandler handler) throws IOException {
+        publishPrepared(new PreparedPublish(request), null, message, handler);
+    }
+
+    /**
+     * Publishes several raw messages, flushing the socket once for the whole batch when frames are
+     * written directly. With priority lanes, capture or Flight Recorder events enabled, each
+     * message is published on its own.
+     */
+    void publishRaw(List<PreparedPublish> targets, List<RawMessage> messages, ResponseHandler handler)
+            throws IOException {
+        if (outboundLanes != null || wireCapture != null || FlightEvents.isRecording()) {
+            for (int i = 0; i < messages.size(); i++) {
+                publishPrepared(targets.get(i), null, messages.get(i), handler);
+            }
+            return;
+        }
+        synchronized (outStreamLock) {
+            for (int i = 0; i < messages.size(); i++) {
+                PreparedPublish prepared = targets.get(i);
+                int seqNo = Frame.generateSequenceNumber();
+                if (handler != null) {
+                    installResponseHandler(seqNo, handler);
+                }
+                recordFrameSent(prepared.getCommand(), seqNo);
+                writePrepared(outStream, prepared, seqNo, null, messages.get(i));
+            }
+            outStream.flush();
+        }
+    }
+
+    // Exactly one of payloadObjects and raw is null
+    private void publishPrepared(PreparedPublish prepared, List<PayloadObject> payloadObjects, RawMessage raw,
+                                 ResponseHandler handler) throws IOException {
+        int seqNo = Frame.generateSequenceNumber();
+        if (handler != null) {
+            installResponseHandler(seqNo, handler);
+        }
+        recordFrameSent(prepared.getCommand(), seqNo);
+        Object writeEvent = FlightEvents.begin(FlightEvents.FRAME_WRITE);
+        OutboundLanes lanes = outboundLanes;
+        WireCapture capture = wireCapture;
+        if (lanes != null || capture != null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            writePrepared(buffer, prepared, seqNo, payloadObjects, raw);
+            writeEncoded(lanes, capture, prepared.getCommand(), buffer.toByteArray());
+        } else {
+            synchronized (outStreamLock) {
+                writePrepared(outStream, prepared, seqNo, payloadObjects, raw);
+                outStream.flush();
+            }
+        }
+        if (writeEvent != null) {
+            Frame.LengthCounter counter = new Frame.LengthCounter();
+            writePrepared(counter, prepared, seqNo, payloadObjects, raw);
+            FlightEvents.commit(writeEvent, prepared.getCommand().name(), seqNo, counter.getLength());
+        }
+    }
+
+    private static void writePrepared(OutputStream out, PreparedPublish prepared, int seqNo,
+                                      List<PayloadObject> payloadObjects, RawMessage raw) throws IOException {
+        Frame.writeHeader(out, prepared.getCommand(), seqNo);
+        out.write(prepared.getEncodedHeaders());
+        if (raw != null) {
+            raw.writeObjectsTo(out);
         } else {
-            builder.setCommand(Command.PUBLISH);
+            for (PayloadObject po : payloadObjects) {
+                po.writeToStream(out);
+            }
+        }
+        Frame.writeEnd(out);
+    }
+
+    /**
+     * Publishes a reusable request. The request is fully written before this returns, so the
+     * caller may modify it and publish again straight away.
+     * @param request The request, which must not be modified concurrently with this call
+     * @param handler Receives the router's response. Pass null to avoid allocating per publish,
+     *                unless priority lanes are enabled, in which case each frame is copied.
+     */
+    public void publish(ReusablePublishRequest request, ResponseHandler handler) throws IOException {
+        int seqNo = Frame.generateSequenceNumber();
+        Command command = request.getCommand();
+        if (handler != null) {
+            installResponseHandler(seqNo, handler);
+        }
+        recordFrameSent(command, seqNo);
+        Object writeEvent = FlightEvents.begin(FlightEvents.FRAME_WRITE);
+        OutboundLanes lanes = outboundLanes;
+        WireCapture capture = wireCapture;
+        if (lanes != null || capture != null) {
+            // The request must be serialized before returning, so it is copied into the queue
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            request.writeToStream(buffer, seqNo);
+            writeEncoded(lanes, capture, command, buffer.toByteArray());
+        } else {
+            synchronized (outStreamLock) {
+                request.writeToStream(outStream, seqNo);
+                outStream.flush();
+            }
+        }
+        if (writeEvent != null) {
+            Frame.LengthCounter counter = new Frame.LengthCounter();
+            request.writeToStream(counter, seqNo);
+            FlightEvents.commit(writeEvent, command.name(), seqNo, counter.getLength());
         }
+    }
+
+    // Adds the key/value pairs describing a publish request, shared with PreparedPublish
+    static void addPublishHeaders(Frame.Builder builder, PublishRequest request) {
+        builder.addKVPair("uri", request.getUri());
         builder.addKVPair("persist", Boolean.toString(request.isPersist()));
 
         Date expiryTime = request.getExpiry();
         if (expiryTime != null) {
-            builder.addKVPair("expiry", Rfc3339.format(expiryTime));
+            builder.addKVPair("expiry", ExpiryFormat.formatExpiry(expiryTime));
         }
 
         Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expiryDelta", String.format("%dms", expiryDelta));
+            builder.addKVPair("expiryDelta", ExpiryFormat.formatDelta(expiryDelta));
         }
 
         String pac = request.getPrimaryAccessChain();
@@ -134,21 +523,26 @@ public class BosswaveClient implements AutoCloseable {
         if (request.autoChain()) {
             builder.addKVPair("autochain", "true");
         }
+    }
 
-        for (RoutingObject ro : request.getRoutingObjects()) {
-            builder.addRoutingObject(ro);
-        }
-        for (PayloadObject po : request.getPayloadObjects()) {
-            builder.addPayloadObject(po);
-        }
+    public void subscribe(SubscribeRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
+        subscribe(request, rh, mh, null);
+    }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        installResponseHandler(seqNo, handler);
+    /**
+     * Subscribes without decoding the routing and payload objects of each message. The handler
+     * receives them still encoded, ready to be forwarded with publishRaw. The request's accepted
+     * payload types and routing objects still apply; its conflation interval and
+     * deduplication window do not.
+     */
+    public void subscribeRaw(SubscribeRequest request, ResponseHandler rh, RawMessageHandler handler)
+            throws IOException {
+        subscribe(request, rh, null, handler);
     }
 
-    public void subscribe(SubscribeRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
+    // Exactly one of mh and rawHandler may be non-null
+    private void subscribe(SubscribeRequest request, ResponseHandler rh, MessageHandler mh,
+                           RawMessageHandler rawHandler) throws IOException {
         int seqNo = Frame.generateSequenceNumber();
         Frame.Builder builder = new Frame.Builder(Command.SUBSCRIBE, seqNo);
 
@@ -157,12 +551,12 @@ public class BosswaveClient implements AutoCloseable {
 
         Date expiryTime = request.getExpiry();
         if (expiryTime != null) {
-            builder.addKVPair("expiry", Rfc3339.format(expiryTime));
+            builder.addKVPair("expiry", ExpiryFormat.formatExpiry(expiryTime));
         }
 
         Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+            builder.addKVPair("expirydelta", ExpiryFormat.formatDelta(expiryDelta));
         }
 
         String pac = request.getPrimaryAccessChain();
@@ -190,19 +584,40 @@ public class BosswaveClient implements AutoCloseable {
         }
 
         Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-
         if (rh != null) {
             installResponseHandler(seqNo, rh);
         }
+        Long conflationInterval = request.getConflationInterval();
+        if (mh != null && conflationInterval != null) {
+            mh = new ConflatingMessageHandler(mh, conflationInterval, null, coalescedMessages);
+        }
+        // Duplicates are discarded first so that they never displace a pending conflated message
+        Integer dedupWindowSize = request.getDeduplicationWindowSize();
+        if (mh != null && dedupWindowSize != null) {
+            mh = new DeduplicatingMessageHandler(mh, dedupWindowSize, request.getDeduplicationWindowMillis(),
+                                                 duplicateMessages);
+        }
         if (mh != null) {
             installMessageHandler(seqNo, mh);
         }
+        if (rawHandler != null) {
+            rawMessageHandlers.put(seqNo, rawHandler);
+        }
+        if (request.getOverloadPolicy() != OverloadPolicy.BLOCK) {
+            overloadPolicies.put(seqNo, request.getOverloadPolicy());
+        }
+        ObjectFilter filter = ObjectFilter.fromRequest(request, rawHandler != null);
+        if (filter != null) {
+            objectFilters.put(seqNo, filter);
+        }
+        writeFrame(f);
     }
 
     public void list(ListRequest request, ResponseHandler rh, ListResultHandler lrh) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
+        list(request, rh, lrh, Frame.generateSequenceNumber());
+    }
+
+    private void list(ListRequest request, ResponseHandler rh, ListResultHandler lrh, int seqNo) throws IOException {
         Frame.Builder builder = new Frame.Builder(Command.LIST, seqNo);
 
         builder.addKVPair("uri", request.getUri());
@@ -214,11 +629,11 @@ public class BosswaveClient implements AutoCloseable {
 
         Date expiry = request.getExpiry();
         if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.format(expiry));
+            builder.addKVPair("expiry", ExpiryFormat.formatExpiry(expiry));
         }
         Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+            builder.addKVPair("expirydelta", ExpiryFormat.formatDelta(expiryDelta));
         }
 
         ChainElaborationLevel level = request.getElabLevel();
@@ -235,18 +650,20 @@ public class BosswaveClient implements AutoCloseable {
         }
 
         Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
         if (rh != null) {
             installResponseHandler(seqNo, rh);
         }
         if (lrh != null) {
             installListResponseHandler(seqNo, lrh);
         }
+        writeFrame(f);
     }
 
     public void query(QueryRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
+        query(request, rh, mh, Frame.generateSequenceNumber());
+    }
+
+    private void query(QueryRequest request, ResponseHandler rh, MessageHandler mh, int seqNo) throws IOException {
         Frame.Builder builder = new Frame.Builder(Command.QUERY, seqNo);
 
         builder.addKVPair("uri", request.getUri());
@@ -258,11 +675,11 @@ public class BosswaveClient implements AutoCloseable {
 
         Date expiry = request.getExpiry();
         if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.format(expiry));
+            builder.addKVPair("expiry", ExpiryFormat.formatExpiry(expiry));
         }
         Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+            builder.addKVPair("expirydelta", ExpiryFormat.formatDelta(expiryDelta));
         }
 
         ChainElaborationLevel level = request.getElabLevel();
@@ -283,14 +700,188 @@ public class BosswaveClient implements AutoCloseable {
         }
 
         Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
         if (rh != null) {
             installResponseHandler(seqNo, rh);
         }
         if (mh != null) {
             installMessageHandler(seqNo, mh);
         }
+        writeFrame(f);
+    }
+
+    /**
+     * Lists the children of a URI as a blocking iterator that fills as results arrive.
+     * @see #listStream(ListRequest, int)
+     */
+    public ResultStream<String> listStream(ListRequest request) throws IOException {
+        return listStream(request, DEFAULT_STREAM_CAPACITY);
+    }
+
+    /**
+     * Lists the children of a URI as a blocking iterator that fills as results arrive.
+     * @param capacity The number of unconsumed results to buffer before the client stops reading
+     *                 from the router. Close the stream to stop buffering early; a full stream
+     *                 that is neither read nor closed stalls the whole client.
+     */
+    public ResultStream<String> listStream(ListRequest request, int capacity) throws IOException {
+        final int seqNo = Frame.generateSequenceNumber();
+        final ResultStream<String> stream = new ResultStream<>(capacity);
+        stream.setCloseAction(new Runnable() {
+            @Override
+            public void run() {
+                removeListResponseHandler(seqNo);
+            }
+        });
+        list(request, new StreamResponseHandler(stream), new ListResultHandler() {
+            @Override
+            public void onResult(String result) {
+                stream.offer(result);
+            }
+
+            @Override
+            public void finish() {
+                stream.finish();
+            }
+        }, seqNo);
+        return stream;
+    }
+
+    /**
+     * Queries a URI, returning the results as a blocking iterator that fills as they arrive.
+     * @see #queryStream(QueryRequest, int)
+     */
+    public ResultStream<Message> queryStream(QueryRequest request) throws IOException {
+        return queryStream(request, DEFAULT_STREAM_CAPACITY);
+    }
+
+    /**
+     * Queries a URI, returning the results as a blocking iterator that fills as they arrive.
+     * @param capacity The number of unconsumed results to buffer before the client stops reading
+     *                 from the router. Close the stream to stop buffering early; a full stream
+     *                 that is neither read nor closed stalls the whole client.
+     */
+    public ResultStream<Message> queryStream(QueryRequest request, int capacity) throws IOException {
+        final int seqNo = Frame.generateSequenceNumber();
+        final ResultStream<Message> stream = new ResultStream<>(capacity);
+        stream.setCloseAction(new Runnable() {
+            @Override
+            public void run() {
+                removeMessageHandler(seqNo);
+            }
+        });
+        query(request, new StreamResponseHandler(stream), new QueryResultHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                stream.offer(message);
+            }
+
+            @Override
+            public void finish() {
+                stream.finish();
+            }
+        }, seqNo);
+        return stream;
+    }
+
+    /**
+     * Enables the last-value cache consulted by {@link #queryCached}. A cached entry is dropped
+     * whenever a subscription on this client delivers a message for the same URI, since that
+     * message may not have been persisted; the next cached query then goes to the router.
+     * Entries are scoped to the primary access chain of the query that filled them, and the cache
+     * is cleared when the client's entity is changed.
+     * @param maxEntries The maximum number of URIs to cache before evicting the least recently used
+     * @param ttlMillis How long a cached value may be served before the router is queried again
+     */
+    public void enableQueryCache(int maxEntries, long ttlMillis) {
+        queryCache = new LastValueCache(maxEntries, ttlMillis);
+    }
+
+    /**
+     * Like {@link #query}, but answers from the last-value cache when it holds a fresh entry for
+     * the request's URI and primary access chain. Wildcard URIs, requests that leave results
+     * packed, and clients without a cache always go to the router. On a cache hit the handlers run on the calling thread before
+     * this method returns; otherwise they run on the listener thread as for {@link #query}.
+     */
+    public void queryCached(QueryRequest request, ResponseHandler rh, final MessageHandler mh) throws IOException {
+        final LastValueCache cache = queryCache;
+        if (cache == null || request.leavePacked() || !LastValueCache.isCacheable(request.getUri())) {
+            query(request, rh, mh);
+            return;
+        }
+
+        final String pac = request.getPrimaryAccessChain();
+        Message cached = cache.get(request.getUri(), pac);
+        if (cached != null) {
+            if (rh != null) {
+                rh.onResponseReceived(new Response("okay", null));
+            }
+            if (mh != null) {
+                mh.onResultReceived(cached);
+                if (mh instanceof QueryResultHandler) {
+                    ((QueryResultHandler) mh).finish();
+                }
+            }
+            return;
+        }
+
+        // Always a QueryResultHandler, so that the listener passes on the end of the results
+        query(request, rh, new QueryResultHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                cache.put(message.getUri(), pac, message);
+                if (mh != null) {
+                    mh.onResultReceived(message);
+                }
+            }
+
+            @Override
+            public void finish() {
+                if (mh instanceof QueryResultHandler) {
+                    ((QueryResultHandler) mh).finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Subscribes to a URI and queries its persisted state as one gap-free stream. The subscription
+     * is issued first and its messages are held back while the query runs; the query results are
+     * delivered, followed by the held messages that the query did not already deliver, followed
+     * by the live subscription.
+     * @param request Describes the subscription, and also the query issued against the same URI
+     * @param rh Receives the subscription's response, and the query's response if it fails
+     * @param mh Receives the merged stream of messages
+     */
+    public void querySubscribe(SubscribeRequest request, final ResponseHandler rh, MessageHandler mh)
+            throws IOException {
+        final SnapshotMerger merger = new SnapshotMerger(mh);
+        subscribe(request, rh, merger.getLiveHandler());
+
+        QueryRequest.Builder builder = new QueryRequest.Builder(request.getUri());
+        builder.setPrimaryAccessChain(request.getPrimaryAccessChain());
+        builder.setExpiry(request.getExpiry());
+        if (request.getExpiryDelta() != null) {
+            builder.setExiryDelta(request.getExpiryDelta());
+        }
+        builder.setChainElaborationLevel(request.getChainElaborationLevel());
+        builder.setAutoChain(request.autoChain());
+        builder.setLeavePacked(request.leavePacked());
+        for (RoutingObject ro : request.getRoutingObjects()) {
+            builder.addRoutingObject(ro);
+        }
+
+        query(builder.build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                if (!result.getStatus().equals("okay")) {
+                    // No results will follow, so release the held live messages
+                    merger.finish();
+                    if (rh != null) {
+                        rh.onResponseReceived(result);
+                    }
+                }
+            }
+        }, merger);
     }
 
     public void makeEntity(MakeEntityRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
@@ -309,12 +900,12 @@ public class BosswaveClient implements AutoCloseable {
 
         Date expiry = request.getExpiry();
         if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.format(expiry));
+            builder.addKVPair("expiry", ExpiryFormat.formatExpiry(expiry));
         }
 
         Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+            builder.addKVPair("expirydelta", ExpiryFormat.formatDelta(expiryDelta));
         }
 
         for (String revoker : request.getRevokers()) {
@@ -324,14 +915,13 @@ public class BosswaveClient implements AutoCloseable {
         builder.addKVPair("omitcreationdate", Boolean.toString(request.omitCreationDate()));
 
         Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
         if (rh != null) {
             installResponseHandler(seqNo, rh);
         }
         if (mh != null) {
             installMessageHandler(seqNo, mh);
         }
+        writeFrame(f);
     }
 
     public void makeDot(MakeDotRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
@@ -349,12 +939,12 @@ public class BosswaveClient implements AutoCloseable {
 
         Date expiry = request.getExpiry();
         if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.format(expiry));
+            builder.addKVPair("expiry", ExpiryFormat.formatExpiry(expiry));
         }
 
         Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+            builder.addKVPair("expirydelta", ExpiryFormat.formatDelta(expiryDelta));
         }
 
         String contact = request.getContact();
@@ -396,14 +986,149 @@ public class BosswaveClient implements AutoCloseable {
         }
 
         Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
         if (rh != null) {
             installResponseHandler(seqNo, rh);
         }
         if (mh != null) {
             installMessageHandler(seqNo, mh);
         }
+        writeFrame(f);
+    }
+
+    /**
+     * Asks the router to build access chains granting an entity permissions on a URI.
+     * @param uri The URI that the chains must grant access to
+     * @param permissions The required permissions, e.g. "P" to publish or "C" to consume
+     * @param to The verifying key of the entity that will use the chains
+     */
+    public void buildChain(String uri, String permissions, String to, ResponseHandler rh, ChainResultHandler crh)
+            throws IOException {
+        int seqNo = Frame.generateSequenceNumber();
+        Frame.Builder builder = new Frame.Builder(Command.BUILD_CHAIN, seqNo);
+
+        builder.addKVPair("uri", uri);
+        builder.addKVPair("to", to);
+        builder.addKVPair("addrperms", permissions);
+
+        Frame f = builder.build();
+        if (rh != null) {
+            installResponseHandler(seqNo, rh);
+        }
+        if (crh != null) {
+            installChainResultHandler(seqNo, crh);
+        }
+        writeFrame(f);
+    }
+
+    private void writeFrame(Frame f) throws IOException {
+        recordFrameSent(f.getCommand(), f.getSeqNo());
+        Object writeEvent = FlightEvents.begin(FlightEvents.FRAME_WRITE);
+        OutboundLanes lanes = outboundLanes;
+        WireCapture capture = wireCapture;
+        if (lanes != null || capture != null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            f.writeToStream(buffer);
+            writeEncoded(lanes, capture, f.getCommand(), buffer.toByteArray());
+        } else {
+            synchronized (outStreamLock) {
+                f.writeToStream(outStream);
+                outStream.flush();
+            }
+        }
+        if (writeEvent != null) {
+            FlightEvents.commit(writeEvent, f.getCommand().name(), f.getSeqNo(), f.getEncodedLength());
+        }
+    }
+
+    // Sends an already encoded frame through the lanes if enabled, recording it first if capturing
+    private void writeEncoded(OutboundLanes lanes, WireCapture capture, Command command, byte[] frame)
+            throws IOException {
+        if (lanes != null) {
+            if (capture != null && !capture.recordOutbound(frame)) {
+                captureStopped(capture);
+            }
+            enqueueFrame(lanes, command, frame);
+            return;
+        }
+        synchronized (outStreamLock) {
+            // Recorded under the lock so that the capture matches the order on the wire
+            if (capture != null && !capture.recordOutbound(frame)) {
+                captureStopped(capture);
+            }
+            outStream.write(frame);
+            outStream.flush();
+        }
+    }
+
+    private void enqueueFrame(OutboundLanes lanes, Command command, byte[] frame) throws IOException {
+        boolean isPublish = (command == Command.PUBLISH || command == Command.PERSIST);
+        lanes.enqueue(frame, isPublish && frame.length >= bulkThresholdBytes);
+    }
+
+    // Called before a request is written, so that its response cannot arrive first
+    private void recordFrameSent(Command command, int seqNo) {
+        if (metricsListeners.isEmpty()) {
+            return;
+        }
+        requestTimings.put(seqNo, new RequestTiming(command, System.nanoTime()));
+        for (MetricsListener listener : metricsListeners) {
+            listener.onFrameSent(command);
+        }
+    }
+
+    private void recordFrameReceived(Frame frame) {
+        if (metricsListeners.isEmpty()) {
+            return;
+        }
+        for (MetricsListener listener : metricsListeners) {
+            listener.onFrameReceived(frame.getCommand());
+        }
+        if (frame.getCommand() == Command.RESPONSE) {
+            RequestTiming timing = requestTimings.remove(frame.getSeqNo());
+            if (timing != null) {
+                long latency = System.nanoTime() - timing.sentAt;
+                byte[] status = frame.getFirstValue("status");
+                boolean okay = status != null && new String(status, StandardCharsets.UTF_8).equals("okay");
+                for (MetricsListener listener : metricsListeners) {
+                    listener.onResponse(timing.command, latency, okay);
+                }
+            }
+        }
+    }
+
+    // The number of requests still waiting for a response from the router
+    int getOutstandingResponseCount() {
+        synchronized (responseHandlerLock) {
+            return responseHandlers.size();
+        }
+    }
+
+    int getMessageHandlerCount() {
+        synchronized (messageHandlersLock) {
+            return messageHandlers.size();
+        }
+    }
+
+    int getListResultHandlerCount() {
+        synchronized (listResultHandlersLock) {
+            return listResultHandlers.size();
+        }
+    }
+
+    int getChainResultHandlerCount() {
+        synchronized (chainResultHandlersLock) {
+            return chainResultHandlers.size();
+        }
+    }
+
+    int getControlQueueDepth() {
+        OutboundLanes lanes = outboundLanes;
+        return (lanes == null ? 0 : lanes.getControlQueueDepth());
+    }
+
+    int getBulkQueueDepth() {
+        OutboundLanes lanes = outboundLanes;
+        return (lanes == null ? 0 : lanes.getBulkQueueDepth());
     }
 
     private void installResponseHandler(int seqNo, ResponseHandler rh) {
@@ -418,88 +1143,475 @@ public class BosswaveClient implements AutoCloseable {
         }
     }
 
+    private void removeMessageHandler(int seqNo) {
+        synchronized (messageHandlersLock) {
+            messageHandlers.remove(seqNo);
+        }
+        overloadPolicies.remove(seqNo);
+        objectFilters.remove(seqNo);
+    }
+
     private void installListResponseHandler(int seqNo, ListResultHandler lrh) {
         synchronized (listResultHandlersLock) {
             listResultHandlers.put(seqNo, lrh);
         }
     }
 
+    private void removeListResponseHandler(int seqNo) {
+        synchronized (listResultHandlersLock) {
+            listResultHandlers.remove(seqNo);
+        }
+    }
+
+    private void installChainResultHandler(int seqNo, ChainResultHandler crh) {
+        synchronized (chainResultHandlersLock) {
+            chainResultHandlers.put(seqNo, crh);
+        }
+    }
+
+    private void removeChainResultHandler(int seqNo) {
+        synchronized (chainResultHandlersLock) {
+            chainResultHandlers.remove(seqNo);
+        }
+    }
+
+    // Ends a result stream early if the router rejects the request that feeds it
+    private static class StreamResponseHandler implements ResponseHandler {
+        private final ResultStream<?> stream;
+
+        private StreamResponseHandler(ResultStream<?> stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            if (!result.getStatus().equals("okay")) {
+                stream.fail(result.getReason());
+            }
+        }
+    }
+
+    private static class RequestTiming {
+        private final Command command;
+        private final long sentAt;
+
+        private RequestTiming(Command command, long sentAt) {
+            this.command = command;
+            this.sentAt = sentAt;
+        }
+    }
+
+    // Reports bytes as they cross the transport, beneath any buffering
+    private class CountingInputStream extends FilterInputStream {
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                recordBytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                recordBytesReceived(n);
+            }
+            return n;
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            recordBytesSent(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would otherwise write one byte at a time
+            out.write(b, off, len);
+            recordBytesSent(len);
+        }
+    }
+
+    private void recordBytesSent(int count) {
+        if (!metricsListeners.isEmpty()) {
+            for (MetricsListener listener : metricsListeners) {
+                listener.onBytesSent(count);
+            }
+        }
+    }
+
+    private void recordBytesReceived(int count) {
+        if (!metricsListeners.isEmpty()) {
+            for (MetricsListener listener : metricsListeners) {
+                listener.onBytesReceived(count);
+            }
+        }
+    }
+
+    // Copies everything read from the client's input stream since the start of the current frame
+    private class CaptureInputStream extends InputStream {
+        private byte[] buffer = new byte[1024];
+        private int length;
+        private int markedLength;
+
+        private void startFrame() {
+            length = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = inStream.read();
+            if (b >= 0) {
+                ensureCapacity(1);
+                buffer[length++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = inStream.read(b, off, len);
+            if (n > 0) {
+                ensureCapacity(n);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+            }
+            return n;
+        }
+
+        // Bytes read after the mark are forgotten on reset, so peeked bytes are recorded only once
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            inStream.mark(readLimit);
+            markedLength = length;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            inStream.reset();
+            length = markedLength;
+        }
+    }
+
     private class BWListener implements Runnable {
+        // Keeps a copy of each inbound frame's bytes while capturing
+        private final CaptureInputStream captureStream = new CaptureInputStream();
+        // The capture the current frame is being read into, if any
+        private WireCapture frameCapture;
+        // Flight Recorder events for the frame being handled, null unless recording
+        private Object dispatchEvent;
+        private Object handlerEvent;
+        private String handlerName;
+
         @Override
         public void run() {
             try {
                 while (true) {
-                    Frame frame = Frame.readFromStream(inStream);
-                    int seqNo = frame.getSeqNo();
-
-                    Command command = frame.getCommand();
-                    switch (command) {
-                        case RESPONSE: {
-                            ResponseHandler responseHandler;
-                            synchronized (responseHandlerLock) {
-                                responseHandler = responseHandlers.get(seqNo);
-                            }
-                            if (responseHandler != null) {
-                                String status = new String(frame.getFirstValue("status"), StandardCharsets.UTF_8);
-                                String reason = null;
-                                if (!status.equals("okay")) {
-                                    reason = new String(frame.getFirstValue("reason"), StandardCharsets.UTF_8);
-                                }
-                                responseHandler.onResponseReceived(new Response(status, reason));
-                            }
-                            break;
+                    Frame frame;
+                    try {
+                        frame = readFrame();
+                    } catch (InvalidFrameException e) {
+                        dropFrame(e);
+                        continue;
+                    }
+                    recordFrameReceived(frame);
+                    InboundBuffer buffer = inboundBuffer;
+                    if (buffer != null) {
+                        buffer.put(frame, overloadPolicy(frame));
+                    } else {
+                        dispatch(frame);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The client is closing
+            } catch (SocketException e) {
+                // This should only occur when we are terminating the client and is safe to ignore
+            } catch (EOFException e) {
+                // The router closed the connection
+            } catch (IOException e) {
+                if (!closed) {
+                    throw new RuntimeException("Failed to read frame", e);
+                }
+            } finally {
+                disconnected = true;
+                // No more responses will arrive for requests still being timed
+                requestTimings.clear();
+            }
+        }
+
+        private Frame readFrame() throws IOException {
+            WireCapture capture = wireCapture;
+            frameCapture = capture;
+            if (capture != null) {
+                captureStream.startFrame();
+                Frame frame = Frame.readFromStream(captureStream, filters());
+                if (!capture.recordInbound(captureStream.buffer, 0, captureStream.length)) {
+                    captureStopped(capture);
+                }
+                return frame;
+            }
+            if (!FlightEvents.isRecording()) {
+                return Frame.readFromStream(inStream, filters());
+            }
+            // Wait for the frame to start arriving, so that idle time is not counted as reading
+            inStream.mark(1);
+            if (inStream.read() >= 0) {
+                inStream.reset();
+            }
+            Object readEvent = FlightEvents.begin(FlightEvents.FRAME_READ);
+            Frame frame = Frame.readFromStream(inStream, filters());
+            if (readEvent != null) {
+                FlightEvents.commit(readEvent, frame.getCommand().name(), frame.getSeqNo(), frame.getEncodedLength());
+            }
+            return frame;
+        }
+
+        private Map<Integer, ObjectFilter> filters() {
+            return (objectFilters.isEmpty() ? null : objectFilters);
+        }
+
+        // Runs on the listener thread, or on the dispatch thread with an inbound buffer
+        private void dispatch(Frame frame) {
+            dispatchEvent = FlightEvents.begin(FlightEvents.DISPATCH);
+            handleFrame(frame);
+            finishEvents(frame);
+        }
+
+        private OverloadPolicy overloadPolicy(Frame frame) {
+            if (frame.getCommand() != Command.RESULT || overloadPolicies.isEmpty()) {
+                return OverloadPolicy.BLOCK;
+            }
+            OverloadPolicy policy = overloadPolicies.get(frame.getSeqNo());
+            return (policy == null ? OverloadPolicy.BLOCK : policy);
+        }
+
+        // Skips to the next frame so that one malformed frame does not end every subscription
+        private void dropFrame(InvalidFrameException e) throws IOException {
+            long skipped;
+            WireCapture capture = frameCapture;
+            if (capture != null) {
+                // The malformed bytes are recorded too, so the capture holds everything received
+                skipped = Frame.skipToNextFrame(captureStream);
+                if (!capture.recordInbound(captureStream.buffer, 0, captureStream.length)) {
+                    captureStopped(capture);
+                }
+            } else {
+                skipped = Frame.skipToNextFrame(inStream);
+            }
+            droppedFrames.incrementAndGet();
+            DroppedFrameHandler handler = droppedFrameHandler;
+            if (handler != null) {
+                handler.onFrameDropped(e.getMessage(), skipped);
+            }
+        }
+
+        // Ends the dispatch event, if any, and starts timing the handler about to run
+        private void handlerFound(Frame frame, Object handler) {
+            HandlerWatchdog watchdog = handlerWatchdog;
+            if (watchdog != null) {
+                watchdog.begin(handler, frame.getCommand(), frame.getSeqNo());
+            }
+            if (dispatchEvent != null) {
+                FlightEvents.commit(dispatchEvent, frame.getCommand().name(), frame.getSeqNo());
+                dispatchEvent = null;
+                handlerEvent = FlightEvents.begin(FlightEvents.HANDLER);
+                handlerName = handler.getClass().getName();
+            }
+        }
+
+        private void finishEvents(Frame frame) {
+            HandlerWatchdog watchdog = handlerWatchdog;
+            if (watchdog != null) {
+                watchdog.end();
+            }
+            if (handlerEvent != null) {
+                FlightEvents.commit(handlerEvent, frame.getCommand().name(), frame.getSeqNo(), handlerName);
+                handlerEvent = null;
+            }
+            if (dispatchEvent != null) {
+                // No handler was waiting for this frame
+                FlightEvents.commit(dispatchEvent, frame.getCommand().name(), frame.getSeqNo());
+                dispatchEvent = null;
+            }
+        }
+
+        private void handleFrame(Frame frame) {
+            int seqNo = frame.getSeqNo();
+            Command command = frame.getCommand();
+            switch (command) {
+                case RESPONSE: {
+                    ResponseHandler responseHandler;
+                    synchronized (responseHandlerLock) {
+                        // Each request receives exactly one response
+                        responseHandler = responseHandlers.remove(seqNo);
+                    }
+                    if (responseHandler != null) {
+                        handlerFound(frame, responseHandler);
+                        String status = new String(frame.getFirstValue("status"), StandardCharsets.UTF_8);
+                        String reason = null;
+                        if (!status.equals("okay")) {
+                            reason = new String(frame.getFirstValue("reason"), StandardCharsets.UTF_8);
                         }
+                        responseHandler.onResponseReceived(new Response(status, reason));
+                    }
+                    break;
+                }
 
-                        case RESULT: {
-                            MessageHandler messageHandler;
-                            synchronized (messageHandlersLock) {
-                                messageHandler = messageHandlers.get(seqNo);
-                            }
-                            ListResultHandler listResultHandler;
-                            synchronized (listResultHandlersLock) {
-                                listResultHandler = listResultHandlers.get(seqNo);
-                            }
+                case RESULT: {
+                    byte[] rawObjects = frame.getRawObjects();
+                    if (rawObjects != null) {
+                        RawMessageHandler rawHandler = rawMessageHandlers.get(seqNo);
+                        if (rawHandler != null) {
+                            handlerFound(frame, rawHandler);
+                            rawHandler.onRawMessage(new RawMessage(
+                                    new String(frame.getFirstValue("from"), StandardCharsets.UTF_8),
+                                    new String(frame.getFirstValue("uri"), StandardCharsets.UTF_8),
+                                    rawObjects, frame.getRawObjectsLength()));
+                        }
+                        break;
+                    }
 
-                            if (messageHandler != null) {
-                                String uri = new String(frame.getFirstValue("uri"), StandardCharsets.UTF_8);
-                                String from = new String(frame.getFirstValue("from"), StandardCharsets.UTF_8);
-
-                                boolean unpack = true;
-                                byte[] unpackBytes = frame.getFirstValue("unpack");
-                                if (unpackBytes != null) {
-                                    unpack = Boolean.parseBoolean(new String(unpackBytes, StandardCharsets.UTF_8));
-                                }
-
-                                Message msg;
-                                if (unpack) {
-                                    msg = new Message(from, uri, frame.getRoutingObjects(), frame.getPayloadObjects());
-                                } else {
-                                    msg = new Message(from, uri, null, null);
-                                }
-                                messageHandler.onResultReceived(msg);
-                            } else if (listResultHandler != null) {
-                                String finishedStr = new String(frame.getFirstValue("finished"), StandardCharsets.UTF_8);
-                                boolean finished = Boolean.parseBoolean(finishedStr);
-                                if (finished) {
-                                    listResultHandler.finish();
-                                } else {
-                                    String child = new String(frame.getFirstValue("child"), StandardCharsets.UTF_8);
-                                    listResultHandler.onResult(child);
-                                }
+                    MessageHandler messageHandler;
+                    synchronized (messageHandlersLock) {
+                        messageHandler = messageHandlers.get(seqNo);
+                    }
+                    ListResultHandler listResultHandler;
+                    synchronized (listResultHandlersLock) {
+                        listResultHandler = listResultHandlers.get(seqNo);
+                    }
+                    ChainResultHandler chainResultHandler;
+                    synchronized (chainResultHandlersLock) {
+                        chainResultHandler = chainResultHandlers.get(seqNo);
+                    }
+                    if (messageHandler != null) {
+                        handlerFound(frame, messageHandler);
+                    } else if (listResultHandler != null) {
+                        handlerFound(frame, listResultHandler);
+                    } else if (chainResultHandler != null) {
+                        handlerFound(frame, chainResultHandler);
+                    }
+
+                    if (messageHandler != null) {
+                        byte[] finishedBytes = frame.getFirstValue("finished");
+                        if (finishedBytes != null &&
+                                Boolean.parseBoolean(new String(finishedBytes, StandardCharsets.UTF_8))) {
+                            // End of a query's results
+                            removeMessageHandler(seqNo);
+                            if (messageHandler instanceof QueryResultHandler) {
+                                finishQuery((QueryResultHandler) messageHandler);
                             }
                             break;
                         }
 
-                        default:
-                            // Ignore frames with any other commands
+                        String uri = new String(frame.getFirstValue("uri"), StandardCharsets.UTF_8);
+                        String from = new String(frame.getFirstValue("from"), StandardCharsets.UTF_8);
+
+                        boolean unpack = true;
+                        byte[] unpackBytes = frame.getFirstValue("unpack");
+                        if (unpackBytes != null) {
+                            unpack = Boolean.parseBoolean(new String(unpackBytes, StandardCharsets.UTF_8));
+                        }
+
+                        // The message may not have been persisted, so the next cached query asks the
+                        // router. A query's own results are cached by its handler after this point.
+                        LastValueCache cache = queryCache;
+                        if (cache != null) {
+                            cache.invalidate(uri);
+                        }
+
+                        Message msg;
+                        if (unpack) {
+                            msg = new Message(from, uri, frame.getRoutingObjects(), frame.getPayloadObjects());
+                        } else {
+                            msg = new Message(from, uri, null, null);
+                        }
+                        deliver(messageHandler, msg);
+                    } else if (listResultHandler != null) {
+                        String finishedStr = new String(frame.getFirstValue("finished"), StandardCharsets.UTF_8);
+                        boolean finished = Boolean.parseBoolean(finishedStr);
+                        if (finished) {
+                            removeListResponseHandler(seqNo);
+                            listResultHandler.finish();
+                        } else {
+                            String child = new String(frame.getFirstValue("child"), StandardCharsets.UTF_8);
+                            listResultHandler.onResult(child);
+                        }
+                    } else if (chainResultHandler != null) {
+                        byte[] finishedBytes = frame.getFirstValue("finished");
+                        if (finishedBytes != null &&
+                                Boolean.parseBoolean(new String(finishedBytes, StandardCharsets.UTF_8))) {
+                            removeChainResultHandler(seqNo);
+                            chainResultHandler.finish();
+                        } else {
+                            List<PayloadObject> pos = frame.getPayloadObjects();
+                            SimpleChain chain = new SimpleChain(
+                                    new String(frame.getFirstValue("hash"), StandardCharsets.UTF_8),
+                                    new String(frame.getFirstValue("permissions"), StandardCharsets.UTF_8),
+                                    new String(frame.getFirstValue("uri"), StandardCharsets.UTF_8),
+                                    new String(frame.getFirstValue("to"), StandardCharsets.UTF_8),
+                                    pos.isEmpty() ? null : pos.get(0).getContent());
+                            chainResultHandler.onResult(chain);
+                        }
                     }
+                    break;
                 }
-            } catch (InvalidFrameException e) {
-                // Ignore invalid frames
-            } catch (SocketException e) {
-                // This should only occur when we are terminating the client and is safe to ignore
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to read frame", e);
+
+                default:
+                    // Ignore frames with any other commands
+            }
+        }
+
+        // Runs a message handler, on the watchdog's isolation executor if it has been isolated
+        private void deliver(final MessageHandler handler, final Message msg) {
+            HandlerWatchdog watchdog = handlerWatchdog;
+            if (watchdog != null && watchdog.isIsolated(handler)) {
+                watchdog.getIsolationExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.onResultReceived(msg);
+                    }
+                });
+            } else {
+                handler.onResultReceived(msg);
+            }
+        }
+
+        // Isolated query handlers are finished on the same executor, after their last result
+        private void finishQuery(final QueryResultHandler handler) {
+            HandlerWatchdog watchdog = handlerWatchdog;
+            if (watchdog != null && watchdog.isIsolated(handler)) {
+                watchdog.getIsolationExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.finish();
+                    }
+                });
+            } else {
+                handler.finish();
             }
         }
     }
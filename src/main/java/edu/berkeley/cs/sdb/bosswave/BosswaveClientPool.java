@@ -0,0 +1,160 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads requests across several connections to the same router, all using the same entity.
+ * Each connection has its own listener thread, so a large frame on one connection does not
+ * delay frames on the others. Responses and results are always delivered by the connection
+ * that carried the original request.
+ */
+public class BosswaveClientPool implements AutoCloseable {
+    public enum Strategy {
+        // Requests for the same URI always share a connection, preserving their relative order
+        URI_HASH,
+        // Each request goes to the connection with the fewest requests awaiting a response
+        LEAST_OUTSTANDING
+    }
+
+    // Supplies a new, unconnected transport for each connection in the pool
+    public interface TransportFactory {
+        Transport createTransport();
+    }
+
+    private final BosswaveClient[] clients;
+    private final Strategy strategy;
+
+    public BosswaveClientPool(final String hostName, final int port, int size, Strategy strategy) {
+        this(new TransportFactory() {
+            @Override
+            public Transport createTransport() {
+                return new TcpTransport(hostName, port);
+            }
+        }, size, strategy);
+    }
+
+    public BosswaveClientPool(TransportFactory factory, int size, Strategy strategy) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool must contain at least one connection");
+        }
+        clients = new BosswaveClient[size];
+        for (int i = 0; i < size; i++) {
+            clients[i] = new BosswaveClient(factory.createTransport());
+        }
+        this.strategy = strategy;
+    }
+
+    // If any connection fails, the connections already made are closed before the failure is rethrown
+    public void connect() throws IOException {
+        int connected = 0;
+        try {
+            for (; connected < clients.length; connected++) {
+                clients[connected].connect();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < connected; i++) {
+                try {
+                    clients[i].close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (BosswaveClient client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sets the entity on every connection in the pool.
+     * @param handler Called once, with the first failure or with success once every connection
+     *                has accepted the entity
+     */
+    public void setEntityFile(File f, ResponseHandler handler) throws IOException {
+        ResponseHandler combined = new CombinedResponseHandler(clients.length, handler);
+        for (BosswaveClient client : clients) {
+            client.setEntityFile(f, combined);
+        }
+    }
+
+    public void publish(PublishRequest request, ResponseHandler handler) throws IOException {
+        clientFor(request.getUri()).publish(request, handler);
+    }
+
+    public void subscribe(SubscribeRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
+        clientFor(request.getUri()).subscribe(request, rh, mh);
+    }
+
+    public void query(QueryRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
+        clientFor(request.getUri()).query(request, rh, mh);
+    }
+
+    public void list(ListRequest request, ResponseHandler rh, ListResultHandler lrh) throws IOException {
+        clientFor(request.getUri()).list(request, rh, lrh);
+    }
+
+    // Chooses the connection that a request for the given URI should use
+    public BosswaveClient clientFor(String uri) {
+        switch (strategy) {
+            case URI_HASH:
+                return clients[(uri.hashCode() & 0x7fffffff) % clients.length];
+
+            case LEAST_OUTSTANDING: {
+                BosswaveClient best = clients[0];
+                int bestOutstanding = best.getOutstandingResponseCount();
+                for (int i = 1; i < clients.length && bestOutstanding > 0; i++) {
+                    int outstanding = clients[i].getOutstandingResponseCount();
+                    if (outstanding < bestOutstanding) {
+                        best = clients[i];
+                        bestOutstanding = outstanding;
+                    }
+                }
+                return best;
+            }
+
+            default:
+                throw new IllegalStateException("Unknown strategy: " + strategy);
+        }
+    }
+
+    public int size() {
+        return clients.length;
+    }
+
+    private static class CombinedResponseHandler implements ResponseHandler {
+        private final AtomicInteger remaining;
+        private final AtomicBoolean reported;
+        private final ResponseHandler handler;
+
+        private CombinedResponseHandler(int count, ResponseHandler handler) {
+            remaining = new AtomicInteger(count);
+            reported = new AtomicBoolean(false);
+            this.handler = handler;
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            boolean okay = result.getStatus().equals("okay");
+            boolean last = remaining.decrementAndGet() == 0;
+            if ((!okay || last) && reported.compareAndSet(false, true) && handler != null) {
+                handler.onResponseReceived(result);
+            }
+        }
+    }
+}
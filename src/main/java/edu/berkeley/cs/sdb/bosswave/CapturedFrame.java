@@ -0,0 +1,29 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+// A single frame read back from a wire capture
+public class CapturedFrame {
+    private final boolean inbound;
+    private final long timestampNanos;
+    private final byte[] bytes;
+
+    CapturedFrame(boolean inbound, long timestampNanos, byte[] bytes) {
+        this.inbound = inbound;
+        this.timestampNanos = timestampNanos;
+        this.bytes = bytes;
+    }
+
+    // True for frames received from the router, false for frames the client sent
+    public boolean isInbound() {
+        return inbound;
+    }
+
+    // Nanoseconds between the start of the capture and this frame
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    // The frame exactly as it appeared on the wire
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,270 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves and caches access chains so that publishes and subscribes can name their primary
+ * access chain explicitly instead of asking the router to build one on every request. A chain is
+ * built once per (entity, URI pattern, permissions) and reused for any URI that its pattern
+ * covers until it expires or the router rejects a request made with it.
+ */
+public class ChainResolver {
+    private static final String PUBLISH_PERMISSION = "P";
+    private static final String CONSUME_PERMISSION = "C";
+
+    private final BosswaveClient client;
+    private final String entityVK;
+    private final long ttlNanos;
+
+    private final Object lock;
+    // Keyed by permissions and the exact URI a chain was requested or reused for
+    private final Map<String, CachedChain> chains;
+    private final Map<String, List<ChainCallback>> pendingBuilds;
+
+    public interface ChainCallback {
+        // The hash is null if the router could not build a suitable chain
+        void onChainResolved(String hash);
+    }
+
+    /**
+     * @param client A connected client
+     * @param entityVK The verifying key of the client's entity, which chains are built for
+     * @param maxEntries The maximum number of cached chains before the least recently used is evicted
+     * @param ttlMillis How long a resolved chain is reused before it is built again
+     */
+    public ChainResolver(BosswaveClient client, String entityVK, final int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache must hold at least one entry");
+        }
+        this.client = client;
+        this.entityVK = entityVK;
+        ttlNanos = ttlMillis * 1000000L;
+        lock = new Object();
+        chains = new LinkedHashMap<String, CachedChain>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedChain> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        pendingBuilds = new HashMap<>();
+    }
+
+    /**
+     * Finds a chain granting the entity permissions on a URI, building one if none is cached.
+     * The callback runs on the calling thread for a cache hit and on the client's listener
+     * thread otherwise. If the BUILD_CHAIN request cannot be sent the exception is thrown, and
+     * any other callbacks waiting on the same build are passed a null hash.
+     */
+    public void resolve(String uri, String permissions, ChainCallback callback) throws IOException {
+        final String key = permissions + " " + uri;
+        String hash;
+        synchronized (lock) {
+            hash = lookup(key, uri, permissions);
+            if (hash == null) {
+                List<ChainCallback> waiters = pendingBuilds.get(key);
+                if (waiters != null) {
+                    // A build for this key is already in flight
+                    waiters.add(callback);
+                    return;
+                }
+                waiters = new ArrayList<>();
+                waiters.add(callback);
+                pendingBuilds.put(key, waiters);
+            }
+        }
+        if (hash != null) {
+            callback.onChainResolved(hash);
+            return;
+        }
+
+        try {
+            buildChain(key, uri, permissions);
+        } catch (IOException e) {
+            List<ChainCallback> waiters;
+            synchronized (lock) {
+                waiters = pendingBuilds.remove(key);
+            }
+            if (waiters != null) {
+                for (ChainCallback waiter : waiters) {
+                    if (waiter != callback) {
+                        waiter.onChainResolved(null);
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void buildChain(final String key, String uri, String permissions) throws IOException {
+        client.buildChain(uri, permissions, entityVK, new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                if (!result.getStatus().equals("okay")) {
+                    complete(key, null);
+                }
+            }
+        }, new ChainResultHandler() {
+            @Override
+            public void onResult(SimpleChain chain) {
+                synchronized (lock) {
+                    chains.put(key, new CachedChain(chain.getHash(), chain.getUri(), System.nanoTime() + ttlNanos));
+                }
+                complete(key, chain.getHash());
+            }
+
+            @Override
+            public void finish() {
+                // Only reaches waiters if no chain was found
+                complete(key, null);
+            }
+        });
+    }
+
+    /**
+     * Publishes a request using a cached publish chain, building one first if necessary. If no
+     * chain can be built the request is sent with router-side chain building enabled instead.
+     * If the publish itself cannot be sent, the response handler receives an error response.
+     */
+    public void publish(final PublishRequest request, final ResponseHandler rh) throws IOException {
+        resolve(request.getUri(), PUBLISH_PERMISSION, new ChainCallback() {
+            @Override
+            public void onChainResolved(String hash) {
+                PublishRequest.Builder builder = new PublishRequest.Builder(request);
+                if (hash == null) {
+                    builder.setAutoChain(true);
+                } else {
+                    builder.setPrimaryAccessChain(hash).setAutoChain(false);
+                }
+                try {
+                    client.publish(builder.build(), new EvictingResponseHandler(hash, rh));
+                } catch (IOException e) {
+                    // Often running on the listener thread, which must not be brought down
+                    fail(rh, "Failed to publish to " + request.getUri() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Subscribes using a cached consume chain, building one first if necessary. If no chain can
+     * be built the request is sent with router-side chain building enabled instead. If the
+     * subscribe itself cannot be sent, the response handler receives an error response.
+     */
+    public void subscribe(final SubscribeRequest request, final ResponseHandler rh, final MessageHandler mh)
+            throws IOException {
+        resolve(request.getUri(), CONSUME_PERMISSION, new ChainCallback() {
+            @Override
+            public void onChainResolved(String hash) {
+                SubscribeRequest.Builder builder = new SubscribeRequest.Builder(request);
+                if (hash == null) {
+                    builder.setAutoChain(true);
+                } else {
+                    builder.setPrimaryAccessChain(hash).setAutoChain(false);
+                }
+                try {
+                    client.subscribe(builder.build(), new EvictingResponseHandler(hash, rh), mh);
+                } catch (IOException e) {
+                    fail(rh, "Failed to subscribe to " + request.getUri() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Drops every cache entry that refers to a chain, e.g. after the router rejects it
+    public void invalidate(String hash) {
+        synchronized (lock) {
+            Iterator<CachedChain> it = chains.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().hash.equals(hash)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Must be called while holding lock
+    private String lookup(String key, String uri, String permissions) {
+        long now = System.nanoTime();
+        CachedChain exact = chains.get(key);
+        if (exact != null) {
+            if (now - exact.expiresAt < 0) {
+                return exact.hash;
+            }
+            chains.remove(key);
+        }
+
+        // A chain built for another URI may still cover this one
+        String prefix = permissions + " ";
+        CachedChain covering = null;
+        for (Map.Entry<String, CachedChain> entry : chains.entrySet()) {
+            CachedChain chain = entry.getValue();
+            if (entry.getKey().startsWith(prefix) && now - chain.expiresAt < 0 &&
+                    UriMatcher.matches(chain.pattern, uri)) {
+                covering = chain;
+                break;
+            }
+        }
+        if (covering == null) {
+            return null;
+        }
+        chains.put(key, covering);
+        return covering.hash;
+    }
+
+    private static void fail(ResponseHandler rh, String reason) {
+        if (rh != null) {
+            rh.onResponseReceived(new Response("error", reason));
+        }
+    }
+
+    private void complete(String key, String hash) {
+        List<ChainCallback> waiters;
+        synchronized (lock) {
+            waiters = pendingBuilds.remove(key);
+        }
+        if (waiters != null) {
+            for (ChainCallback callback : waiters) {
+                callback.onChainResolved(hash);
+            }
+        }
+    }
+
+    private static class CachedChain {
+        private final String hash;
+        private final String pattern;
+        private final long expiresAt;
+
+        private CachedChain(String hash, String pattern, long expiresAt) {
+            this.hash = hash;
+            this.pattern = pattern;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class EvictingResponseHandler implements ResponseHandler {
+        private final String hash;
+        private final ResponseHandler handler;
+
+        private EvictingResponseHandler(String hash, ResponseHandler handler) {
+            this.hash = hash;
+            this.handler = handler;
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            if (hash != null && !result.getStatus().equals("okay")) {
+                // The chain may have expired or been revoked since it was cached
+                invalidate(hash);
+            }
+            if (handler != null) {
+                handler.onResponseReceived(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+public interface ChainResultHandler {
+    void onResult(SimpleChain chain);
+
+    void finish();
+}
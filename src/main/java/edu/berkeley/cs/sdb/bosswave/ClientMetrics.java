@@ -0,0 +1,227 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts a client's frames and bytes by command, records how long each request waits for its
+ * response, and reads the client's handler and queue sizes on demand. Every update is lock-free.
+ * @see BosswaveClient#enableMetrics()
+ */
+public class ClientMetrics implements MetricsListener, ClientMetricsMBean {
+    private static final String DOMAIN = "edu.berkeley.cs.sdb.bosswave";
+    private static final int COMMAND_COUNT = Command.values().length;
+
+    private final BosswaveClient client;
+    private final AtomicLongArray framesSent;
+    private final AtomicLongArray framesReceived;
+    private final AtomicLong bytesSent;
+    private final AtomicLong bytesReceived;
+    private final AtomicLong failedResponses;
+    // Created on first use, since only request commands ever receive responses
+    private final AtomicReferenceArray<LatencyHistogram> latencies;
+    private volatile ObjectName registeredName;
+
+    ClientMetrics(BosswaveClient client) {
+        this.client = client;
+        framesSent = new AtomicLongArray(COMMAND_COUNT);
+        framesReceived = new AtomicLongArray(COMMAND_COUNT);
+        bytesSent = new AtomicLong();
+        bytesReceived = new AtomicLong();
+        failedResponses = new AtomicLong();
+        latencies = new AtomicReferenceArray<>(COMMAND_COUNT);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under
+     * edu.berkeley.cs.sdb.bosswave:type=BosswaveClient,name=&lt;name&gt;. The client unregisters
+     * them when it is closed.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=BosswaveClient,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+        return objectName;
+    }
+
+    public void unregisterMBean() {
+        ObjectName objectName = registeredName;
+        if (objectName == null) {
+            return;
+        }
+        registeredName = null;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Already unregistered by someone else
+        } catch (MBeanRegistrationException e) {
+            throw new RuntimeException("Failed to unregister " + objectName, e);
+        }
+    }
+
+    @Override
+    public void onFrameSent(Command command) {
+        framesSent.incrementAndGet(command.ordinal());
+    }
+
+    @Override
+    public void onFrameReceived(Command command) {
+        framesReceived.incrementAndGet(command.ordinal());
+    }
+
+    @Override
+    public void onBytesSent(int count) {
+        bytesSent.addAndGet(count);
+    }
+
+    @Override
+    public void onBytesReceived(int count) {
+        bytesReceived.addAndGet(count);
+    }
+
+    @Override
+    public void onResponse(Command command, long latencyNanos, boolean okay) {
+        if (!okay) {
+            failedResponses.incrementAndGet();
+        }
+        getResponseLatencies(command).recordValue(latencyNanos);
+    }
+
+    public long getFramesSent(Command command) {
+        return framesSent.get(command.ordinal());
+    }
+
+    public long getFramesReceived(Command command) {
+        return framesReceived.get(command.ordinal());
+    }
+
+    // The live histogram of request-to-response latencies for a command, in nanoseconds
+    public LatencyHistogram getResponseLatencies(Command command) {
+        LatencyHistogram histogram = latencies.get(command.ordinal());
+        if (histogram == null) {
+            latencies.compareAndSet(command.ordinal(), null, new LatencyHistogram());
+            histogram = latencies.get(command.ordinal());
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getFramesSent() {
+        return sum(framesSent);
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return sum(framesReceived);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public long getFailedResponses() {
+        return failedResponses.get();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return client.getDroppedFrameCount();
+    }
+
+    @Override
+    public int getOutstandingResponses() {
+        return client.getOutstandingResponseCount();
+    }
+
+    @Override
+    public int getMessageHandlers() {
+        return client.getMessageHandlerCount();
+    }
+
+    @Override
+    public int getListResultHandlers() {
+        return client.getListResultHandlerCount();
+    }
+
+    @Override
+    public int getChainResultHandlers() {
+        return client.getChainResultHandlerCount();
+    }
+
+    @Override
+    public int getControlQueueDepth() {
+        return client.getControlQueueDepth();
+    }
+
+    @Override
+    public int getBulkQueueDepth() {
+        return client.getBulkQueueDepth();
+    }
+
+    @Override
+    public int getInboundQueueDepth() {
+        InboundBufferStats stats = client.getInboundBufferStats();
+        return (stats == null ? 0 : stats.getDepth());
+    }
+
+    @Override
+    public long getInboundDropped() {
+        InboundBufferStats stats = client.getInboundBufferStats();
+        return (stats == null ? 0 : stats.getDroppedCount());
+    }
+
+    @Override
+    public long getFramesSentFor(String command) {
+        return getFramesSent(Command.valueOf(command));
+    }
+
+    @Override
+    public long getFramesReceivedFor(String command) {
+        return getFramesReceived(Command.valueOf(command));
+    }
+
+    @Override
+    public long getResponseCountFor(String command) {
+        LatencyHistogram histogram = latencies.get(Command.valueOf(command).ordinal());
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    @Override
+    public double getResponseLatencyMicros(String command, double percentile) {
+        LatencyHistogram histogram = latencies.get(Command.valueOf(command).ordinal());
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            LatencyHistogram histogram = latencies.get(i);
+            if (histogram != null) {
+                histogram.reset();
+            }
+        }
+    }
+
+    private static long sum(AtomicLongArray counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,45 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * The JMX view of a client's {@link ClientMetrics}. Operations taking a command expect the name
+ * of a {@link Command} constant, such as "PUBLISH".
+ */
+public interface ClientMetricsMBean {
+    long getFramesSent();
+
+    long getFramesReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getFailedResponses();
+
+    long getDroppedFrames();
+
+    int getOutstandingResponses();
+
+    int getMessageHandlers();
+
+    int getListResultHandlers();
+
+    int getChainResultHandlers();
+
+    int getControlQueueDepth();
+
+    int getBulkQueueDepth();
+
+    int getInboundQueueDepth();
+
+    long getInboundDropped();
+
+    long getFramesSentFor(String command);
+
+    long getFramesReceivedFor(String command);
+
+    long getResponseCountFor(String command);
+
+    double getResponseLatencyMicros(String command, double percentile);
+
+    void resetLatencies();
+}
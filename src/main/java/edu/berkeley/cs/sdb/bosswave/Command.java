@@ -1,10 +1,11 @@
 package edu.berkeley.cs.sdb.bosswave;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-enum Command {
+public enum Command {
     PUBLISH         ("publ"),
     PERSIST         ("pers"),
     SUBSCRIBE       ("subs"),
@@ -29,15 +30,22 @@ enum Command {
     RESULT          ("rslt");
 
     private final String code;
+    private final byte[] codeBytes;
 
     Command(String code) {
         this.code = code;
+        codeBytes = code.getBytes(StandardCharsets.UTF_8);
     }
 
     public String getCode() {
         return code;
     }
 
+    // Callers must not modify the returned array
+    byte[] getCodeBytes() {
+        return codeBytes;
+    }
+
     private static final Map<String, Command> COMMANDS_BY_CODE;
     static {
         HashMap<String, Command> codeMap = new HashMap<>();
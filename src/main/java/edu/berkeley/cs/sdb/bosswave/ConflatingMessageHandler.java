@@ -0,0 +1,134 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers only the latest message for each URI to another handler. Messages are passed on from
+ * an executor rather than the client's listener thread, at most once per interval. Messages for a
+ * URI that arrive while the handler is busy or within the interval replace each other, so the
+ * handler catches up with the newest values as soon as it is free.
+ * @see SubscribeRequest.Builder#setConflationInterval(long)
+ */
+public class ConflatingMessageHandler implements MessageHandler {
+    private static ScheduledExecutorService defaultExecutor;
+
+    private final MessageHandler handler;
+    private final long intervalNanos;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong coalescedCount;
+    // Also counts coalesced messages for the client, may be null
+    private final AtomicLong clientCoalescedCount;
+    private final Runnable drain;
+
+    private final Object lock = new Object();
+    private Map<String, Message> pending;
+    private Map<String, Message> spare;
+    private boolean scheduled;
+    private long lastDelivery;
+
+    /**
+     * @param handler Receives the latest message for each URI
+     * @param intervalMillis The minimum time between deliveries, or zero to deliver whenever the
+     *                       handler is free
+     * @param executor Runs the handler. If null, a thread shared by all conflating handlers is used.
+     */
+    public ConflatingMessageHandler(MessageHandler handler, long intervalMillis, ScheduledExecutorService executor) {
+        this(handler, intervalMillis, executor, null);
+    }
+
+    public ConflatingMessageHandler(MessageHandler handler, long intervalMillis) {
+        this(handler, intervalMillis, null, null);
+    }
+
+    ConflatingMessageHandler(MessageHandler handler, long intervalMillis, ScheduledExecutorService executor,
+                             AtomicLong clientCoalescedCount) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Negative conflation interval");
+        }
+        this.handler = handler;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.executor = (executor == null ? defaultExecutor() : executor);
+        coalescedCount = new AtomicLong(0);
+        this.clientCoalescedCount = clientCoalescedCount;
+        pending = new LinkedHashMap<>();
+        spare = new LinkedHashMap<>();
+        lastDelivery = System.nanoTime() - intervalNanos;
+        drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    // The number of messages replaced by a newer message for the same URI before delivery
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    @Override
+    public void onResultReceived(Message message) {
+        synchronized (lock) {
+            if (pending.put(message.getUri(), message) != null) {
+                coalescedCount.incrementAndGet();
+                if (clientCoalescedCount != null) {
+                    clientCoalescedCount.incrementAndGet();
+                }
+            }
+            if (!scheduled) {
+                scheduled = true;
+                schedule();
+            }
+        }
+    }
+
+    private void drain() {
+        Map<String, Message> batch;
+        synchronized (lock) {
+            batch = pending;
+            pending = spare;
+            lastDelivery = System.nanoTime();
+        }
+        try {
+            for (Message message : batch.values()) {
+                handler.onResultReceived(message);
+            }
+        } finally {
+            batch.clear();
+            synchronized (lock) {
+                spare = batch;
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    schedule();
+                }
+            }
+        }
+    }
+
+    // Must hold lock
+    private void schedule() {
+        long delay = lastDelivery + intervalNanos - System.nanoTime();
+        executor.schedule(drain, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "bosswave-conflation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+}
@@ -0,0 +1,187 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes messages on to another handler, discarding any whose URI, sender and payload objects
+ * match a message seen recently. Messages are remembered by a 64-bit hash in two generations of
+ * fixed size: when the current generation holds windowSize hashes, or is older than the time
+ * window, the previous generation is cleared and reused. Memory is therefore constant, and a
+ * duplicate is caught as long as at least windowSize messages, or windowMillis, have not passed
+ * since the original. A distinct message is discarded only if its hash collides with a
+ * remembered one, which is astronomically unlikely but not impossible.
+ *
+ * To discard duplicates across subscriptions, such as overlapping wildcards or a subscription
+ * that was renewed, pass the same instance to each subscribe call.
+ * @see SubscribeRequest.Builder#setDeduplicationWindow(int, long)
+ */
+public class DeduplicatingMessageHandler implements MessageHandler {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final MessageHandler handler;
+    private final int windowSize;
+    private final long windowNanos;
+    private final AtomicLong duplicateCount;
+    // Also counts duplicates for the client, may be null
+    private final AtomicLong clientDuplicateCount;
+
+    private LongSet current;
+    private LongSet previous;
+    private long generationStart;
+
+    /**
+     * @param handler Receives each distinct message
+     * @param windowSize The number of messages each generation remembers
+     * @param windowMillis The longest a generation stays current, or zero for no time limit
+     */
+    public DeduplicatingMessageHandler(MessageHandler handler, int windowSize, long windowMillis) {
+        this(handler, windowSize, windowMillis, null);
+    }
+
+    DeduplicatingMessageHandler(MessageHandler handler, int windowSize, long windowMillis,
+                                AtomicLong clientDuplicateCount) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Negative deduplication window");
+        }
+        this.handler = handler;
+        this.windowSize = windowSize;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        duplicateCount = new AtomicLong(0);
+        this.clientDuplicateCount = clientDuplicateCount;
+        current = new LongSet(windowSize);
+        previous = new LongSet(windowSize);
+        generationStart = System.nanoTime();
+    }
+
+    // The number of messages discarded as duplicates
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    @Override
+    public void onResultReceived(Message message) {
+        if (isDuplicate(hash(message))) {
+            duplicateCount.incrementAndGet();
+            if (clientDuplicateCount != null) {
+                clientDuplicateCount.incrementAndGet();
+            }
+            return;
+        }
+        handler.onResultReceived(message);
+    }
+
+    // Records the hash, and returns true if it was already known
+    private synchronized boolean isDuplicate(long hash) {
+        long now = System.nanoTime();
+        // Expire old generations first, so that a quiet period does not leave stale hashes to match
+        if (windowNanos > 0) {
+            long age = now - generationStart;
+            if (age >= 2 * windowNanos) {
+                current.clear();
+                previous.clear();
+                generationStart = now;
+            } else if (age >= windowNanos) {
+                rotate(now);
+            }
+        }
+        if (current.contains(hash) || previous.contains(hash)) {
+            return true;
+        }
+        if (current.size() == windowSize) {
+            rotate(now);
+        }
+        current.add(hash);
+        return false;
+    }
+
+    // Clears the previous generation and makes it current
+    private void rotate(long now) {
+        LongSet cleared = previous;
+        cleared.clear();
+        previous = current;
+        current = cleared;
+        generationStart = now;
+    }
+
+    // FNV-1a over the URI, sender, and each payload object's type and content
+    static long hash(Message message) {
+        long h = FNV_OFFSET;
+        h = hash(h, message.getUri());
+        h = hash(h, message.getFrom());
+        for (PayloadObject po : message.getPayloadObjects()) {
+            h = hash(h, po.getType().toString());
+            byte[] content = po.getContentArray();
+            for (byte b : content) {
+                h = (h ^ (b & 0xff)) * FNV_PRIME;
+            }
+            // Separates the content from the next object
+            h = (h ^ content.length) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return (h ^ 0xff) * FNV_PRIME;
+    }
+
+    // An open-addressing set of longs that never grows; zero is stored as one
+    private static class LongSet {
+        private final long[] slots;
+        private final int mask;
+        private int size;
+
+        private LongSet(int capacity) {
+            // At most half full, so probes stay short
+            slots = new long[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2];
+            mask = slots.length - 1;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private boolean contains(long value) {
+            value = (value == 0 ? 1 : value);
+            for (int i = index(value); slots[i] != 0; i = (i + 1) & mask) {
+                if (slots[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void add(long value) {
+            value = (value == 0 ? 1 : value);
+            int i = index(value);
+            while (slots[i] != 0) {
+                if (slots[i] == value) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = value;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(slots, 0);
+            size = 0;
+        }
+
+        private int index(long value) {
+            // The hash is already well mixed, but fold the high bits in as well
+            return (int) (value ^ (value >>> 32)) & mask;
+        }
+    }
+}
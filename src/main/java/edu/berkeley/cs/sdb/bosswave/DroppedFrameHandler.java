@@ -0,0 +1,11 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Told about each malformed frame a client discards. Called on the client's listener thread,
+ * which resumes reading from the next well-formed frame once this returns.
+ * @see BosswaveClient#setDroppedFrameHandler(DroppedFrameHandler)
+ */
+public interface DroppedFrameHandler {
+    // skippedBytes counts the bytes discarded after the point where the frame was found to be malformed
+    void onFrameDropped(String reason, long skippedBytes);
+}
@@ -0,0 +1,68 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Encodes the "expiry" and "expirydelta" header values sent with requests. SimpleDateFormat is
+ * not thread-safe, so each thread formats with its own instance, and the most recently formatted
+ * second is cached because concurrent publishers tend to use nearly identical expiry times.
+ * Encoded delta values are kept in a small lock-free cache. Callers must not modify the
+ * returned arrays.
+ */
+final class ExpiryFormat {
+    private static final int DELTA_CACHE_SIZE = 64;
+
+    private static final ThreadLocal<SimpleDateFormat> Rfc3339 = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+        }
+    };
+
+    private static volatile Encoded lastExpiry = new Encoded(Long.MIN_VALUE, null);
+    private static final AtomicReferenceArray<Encoded> deltaCache = new AtomicReferenceArray<>(DELTA_CACHE_SIZE);
+
+    private ExpiryFormat() {
+    }
+
+    // Equivalent to formatting the date as "yyyy-MM-dd'T'HH:mm:ssXXX"
+    static byte[] formatExpiry(Date expiry) {
+        long time = expiry.getTime();
+        long second = (time >= 0 ? time / 1000 : (time - 999) / 1000);
+        Encoded cached = lastExpiry;
+        if (cached.key == second) {
+            return cached.bytes;
+        }
+
+        String text = Rfc3339.get().format(expiry);
+        Encoded encoded = new Encoded(second, text.getBytes(StandardCharsets.UTF_8));
+        lastExpiry = encoded;
+        return encoded.bytes;
+    }
+
+    // Equivalent to formatting the delta as "%dms"
+    static byte[] formatDelta(long deltaMillis) {
+        int slot = (int) ((deltaMillis ^ (deltaMillis >>> 32)) & (DELTA_CACHE_SIZE - 1));
+        Encoded cached = deltaCache.get(slot);
+        if (cached != null && cached.key == deltaMillis) {
+            return cached.bytes;
+        }
+
+        Encoded encoded = new Encoded(deltaMillis, (Long.toString(deltaMillis) + "ms").getBytes(StandardCharsets.UTF_8));
+        deltaCache.set(slot, encoded);
+        return encoded.bytes;
+    }
+
+    private static class Encoded {
+        private final long key;
+        private final byte[] bytes;
+
+        private Encoded(long key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emits JDK Flight Recorder events describing the client's frame I/O, dispatch, and handler
+ * execution, so that client stalls can be lined up against GC and OS events in the same
+ * recording. The library targets Java 7, so the jdk.jfr API is reached reflectively and events
+ * are defined at runtime with jdk.jfr.EventFactory. On a runtime without JFR every method is a
+ * no-op, and while no recording is running begin() costs a single volatile read.
+ *
+ * Usage: {@code Object e = FlightEvents.begin(FlightEvents.FRAME_READ); ...; FlightEvents.commit(e, values...)},
+ * with values in the order the event type declares its fields.
+ */
+final class FlightEvents {
+    private static final String CATEGORY = "Bosswave";
+
+    // command, seqNo, size in bytes; the duration covers reading the frame from the stream
+    static final EventType FRAME_READ;
+    // command, seqNo, size in bytes; the duration covers writing and flushing, or queueing with priority lanes
+    static final EventType FRAME_WRITE;
+    // command, seqNo; the duration covers the time from reading a frame to invoking its handler,
+    // or from taking it off the inbound buffer; time spent queued is in InboundBufferStats
+    static final EventType DISPATCH;
+    // command, seqNo, handler class; the duration covers the handler's callbacks for one frame
+    static final EventType HANDLER;
+    // transport; the duration covers connecting and receiving the router's HELLO
+    static final EventType CONNECT;
+
+    private static final MethodHandle NEW_EVENT;
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle END;
+    private static final MethodHandle SHOULD_COMMIT;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle SET;
+
+    private static volatile boolean recording;
+
+    static {
+        MethodHandle newEvent = null;
+        MethodHandle begin = null;
+        MethodHandle end = null;
+        MethodHandle shouldCommit = null;
+        MethodHandle commit = null;
+        MethodHandle set = null;
+        EventType frameRead = null;
+        EventType frameWrite = null;
+        EventType dispatch = null;
+        EventType handler = null;
+        EventType connect = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            MethodType objectToVoid = MethodType.methodType(void.class, Object.class);
+            newEvent = lookup.unreflect(factoryClass.getMethod("newEvent"))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            begin = lookup.unreflect(eventClass.getMethod("begin")).asType(objectToVoid);
+            end = lookup.unreflect(eventClass.getMethod("end")).asType(objectToVoid);
+            commit = lookup.unreflect(eventClass.getMethod("commit")).asType(objectToVoid);
+            shouldCommit = lookup.unreflect(eventClass.getMethod("shouldCommit"))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            set = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+
+            frameRead = defineEvent("FrameRead", "Frame Read", new String[]{"command", "seqNo", "size"},
+                    new Class<?>[]{String.class, int.class, int.class});
+            frameWrite = defineEvent("FrameWrite", "Frame Write", new String[]{"command", "seqNo", "size"},
+                    new Class<?>[]{String.class, int.class, int.class});
+            dispatch = defineEvent("Dispatch", "Frame Dispatch", new String[]{"command", "seqNo"},
+                    new Class<?>[]{String.class, int.class});
+            handler = defineEvent("Handler", "Handler Execution", new String[]{"command", "seqNo", "handler"},
+                    new Class<?>[]{String.class, int.class, String.class});
+            connect = defineEvent("Connect", "Connect", new String[]{"transport"},
+                    new Class<?>[]{String.class});
+            watchRecordings();
+        } catch (Throwable t) {
+            // No usable Flight Recorder in this runtime
+            frameRead = frameWrite = dispatch = handler = connect = null;
+        }
+        NEW_EVENT = newEvent;
+        BEGIN = begin;
+        END = end;
+        SHOULD_COMMIT = shouldCommit;
+        COMMIT = commit;
+        SET = set;
+        FRAME_READ = frameRead;
+        FRAME_WRITE = frameWrite;
+        DISPATCH = dispatch;
+        HANDLER = handler;
+        CONNECT = connect;
+    }
+
+    private FlightEvents() {
+    }
+
+    // Returns a started event, or null if it would not be recorded
+    static Object begin(EventType type) {
+        if (!recording || type == null) {
+            return null;
+        }
+        try {
+            Object event = NEW_EVENT.invokeExact(type.factory);
+            BEGIN.invokeExact(event);
+            return event;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    // Ends and commits an event returned by begin(). Does nothing if the event is null.
+    static void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            END.invokeExact(event);
+            if ((boolean) SHOULD_COMMIT.invokeExact(event)) {
+                for (int i = 0; i < values.length; i++) {
+                    SET.invokeExact(event, i, values[i]);
+                }
+                COMMIT.invokeExact(event);
+            }
+        } catch (Throwable t) {
+            // Instrumentation must never disturb the client
+        }
+    }
+
+    static boolean isRecording() {
+        return recording;
+    }
+
+    private static EventType defineEvent(String name, String label, String[] fieldNames, Class<?>[] fieldTypes)
+            throws ReflectiveOperationException {
+        Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+        Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation(annotationElementClass, "jdk.jfr.Name", "edu.berkeley.cs.sdb.bosswave." + name));
+        annotations.add(annotation(annotationElementClass, "jdk.jfr.Label", label));
+        annotations.add(annotation(annotationElementClass, "jdk.jfr.Category", new String[]{CATEGORY}));
+
+        List<Object> fields = new ArrayList<>();
+        for (int i = 0; i < fieldNames.length; i++) {
+            fields.add(valueDescriptorClass.getConstructor(Class.class, String.class)
+                    .newInstance(fieldTypes[i], fieldNames[i]));
+        }
+
+        Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+        return new EventType(create.invoke(null, annotations, fields));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object annotation(Class<?> annotationElementClass, String type, Object value)
+            throws ReflectiveOperationException {
+        Class<? extends Annotation> annotationType = (Class<? extends Annotation>) Class.forName(type);
+        return annotationElementClass.getConstructor(Class.class, Object.class).newInstance(annotationType, value);
+    }
+
+    // Keeps the recording flag in step with the recorder, without initializing the recorder ourselves
+    private static void watchRecordings() throws ReflectiveOperationException {
+        final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+        Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+        Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[]{listenerClass},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "recorderInitialized":
+                            case "recordingStateChanged":
+                                recording = anyRecordingRunning(recorderClass);
+                                return null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return "FlightEvents listener";
+                            default:
+                                return null;
+                        }
+                    }
+                });
+        recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+    }
+
+    private static boolean anyRecordingRunning(Class<?> recorderClass) throws ReflectiveOperationException {
+        Object recorder = recorderClass.getMethod("getFlightRecorder").invoke(null);
+        List<?> recordings = (List<?>) recorderClass.getMethod("getRecordings").invoke(recorder);
+        for (Object recording : recordings) {
+            Object state = recording.getClass().getMethod("getState").invoke(recording);
+            if (state.toString().equals("RUNNING")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final class EventType {
+        private final Object factory;
+
+        private EventType(Object factory) {
+            this.factory = factory;
+        }
+    }
+}
@@ -3,12 +3,16 @@ package edu.berkeley.cs.sdb.bosswave;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 class Frame {
     private static final int BW_HEADER_LEN = 27;
+    private static final byte[] EMPTY_LENGTH_FIELD = " 0000000000 ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_MARKER = "end\n".getBytes(StandardCharsets.UTF_8);
     private static final Random random = new Random();
 
     private final Command command;
@@ -16,15 +20,25 @@ class Frame {
     private final List<KVPair> kvPairs;
     private final List<RoutingObject> routingObjects;
     private final List<PayloadObject> payloadObjects;
+    // The encoded routing and payload objects of a frame read in raw mode, otherwise null
+    private final byte[] rawObjects;
+    private final int rawObjectsLength;
 
     // Frame objects are instantiated using Frame.Builder
     private Frame(Command command, int seqNo, List<KVPair> kvPairs, List<RoutingObject> routingObjects,
                   List<PayloadObject> payloadObjects) {
+        this(command, seqNo, kvPairs, routingObjects, payloadObjects, null, 0);
+    }
+
+    private Frame(Command command, int seqNo, List<KVPair> kvPairs, List<RoutingObject> routingObjects,
+                  List<PayloadObject> payloadObjects, byte[] rawObjects, int rawObjectsLength) {
         this.command = command;
         this.seqNo = seqNo;
         this.kvPairs = Collections.unmodifiableList(kvPairs);
         this.routingObjects = Collections.unmodifiableList(routingObjects);
         this.payloadObjects = Collections.unmodifiableList(payloadObjects);
+        this.rawObjects = rawObjects;
+        this.rawObjectsLength = rawObjectsLength;
     }
 
     public Command getCommand() {
@@ -56,9 +70,28 @@ class Frame {
         return seqNo;
     }
 
+    // Only the first getRawObjectsLength() bytes are part of the frame
+    byte[] getRawObjects() {
+        return rawObjects;
+    }
+
+    int getRawObjectsLength() {
+        return rawObjectsLength;
+    }
+
     public static Frame readFromStream(InputStream stream) throws IOException {
+        return readFromStream(stream, null);
+    }
+
+    /**
+     * Reads a frame, skipping the bodies of objects in RESULT frames that the filter for the
+     * frame's sequence number does not accept. If the filter is raw, accepted objects are kept
+     * encoded, exactly as received, instead of being decoded.
+     * @param filters Object filters by sequence number, or null to decode every object
+     */
+    static Frame readFromStream(InputStream stream, Map<Integer, ObjectFilter> filters) throws IOException {
         byte[] frameBytes = new byte[BW_HEADER_LEN];
-        stream.read(frameBytes, 0, BW_HEADER_LEN);
+        readFully(stream, frameBytes);
         String frameHeader = new String(frameBytes, StandardCharsets.UTF_8);
 
         String[] headerTokens = frameHeader.trim().split(" ");
@@ -88,6 +121,8 @@ class Frame {
         } catch (NumberFormatException e) {
             throw new InvalidFrameException("Invalid sequence number in frame header: " + headerTokens[2], e);
         }
+        ObjectFilter filter = (filters == null || command != Command.RESULT ? null : filters.get(seqNo));
+        RawObjects raw = (filter != null && filter.isRaw() ? new RawObjects() : null);
 
         List<KVPair> kvPairs = new ArrayList<>();
         List<RoutingObject> routingObjects = new ArrayList<>();
@@ -113,7 +148,7 @@ class Frame {
                 case "kv": {
                     String key = tokens[1];
                     byte[] body = new byte[length];
-                    stream.read(body, 0, length);
+                    readFully(stream, body);
                     kvPairs.add(new KVPair(key, body));
 
                     // Remove trailing '\n'
@@ -131,8 +166,16 @@ class Frame {
                     } catch (NumberFormatException e) {
                         throw new InvalidFrameException("Invalid routing object number: " + tokens[1], e);
                     }
+                    if (filter != null && !filter.acceptsRoutingObject(routingObjNum)) {
+                        skipFully(stream, length + 1);
+                        break;
+                    }
+                    if (raw != null) {
+                        raw.append(currentLine, stream, length);
+                        break;
+                    }
                     byte[] body = new byte[length];
-                    stream.read(body, 0, length);
+                    readFully(stream, body);
                     RoutingObject ro = new RoutingObject(routingObjNum, body);
                     routingObjects.add(ro);
 
@@ -148,9 +191,17 @@ class Frame {
                     } catch (IllegalArgumentException e) {
                         throw new InvalidFrameException("Invalid payload object type: " + currentLine, e);
                     }
+                    if (filter != null && !filter.acceptsPayloadType(type)) {
+                        skipFully(stream, length + 1);
+                        break;
+                    }
+                    if (raw != null) {
+                        raw.append(currentLine, stream, length);
+                        break;
+                    }
 
                     byte[] body = new byte[length];
-                    stream.read(body, 0, length);
+                    readFully(stream, body);
                     payloadObjects.add(new PayloadObject(type, body));
 
                     // Remove trailing '\n'
@@ -165,12 +216,56 @@ class Frame {
             }
         }
 
+        if (raw != null) {
+            return new Frame(command, seqNo, kvPairs, routingObjects, payloadObjects, raw.bytes, raw.length);
+        }
         return new Frame(command, seqNo, kvPairs, routingObjects, payloadObjects);
     }
 
+    // Accumulates encoded objects, each read from the stream straight into one growing array
+    private static class RawObjects {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        private void append(String itemHeader, InputStream stream, int bodyLength) throws IOException {
+            byte[] header = itemHeader.getBytes(StandardCharsets.UTF_8);
+            int needed = header.length + bodyLength + 2;
+            if (length + needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+            }
+            System.arraycopy(header, 0, bytes, length, header.length);
+            length += header.length;
+            bytes[length++] = '\n';
+            readFully(stream, bytes, length, bodyLength);
+            length += bodyLength;
+            // The trailing newline
+            if (stream.read() < 0) {
+                throw new EOFException("Stream ended partway through a frame");
+            }
+            bytes[length++] = '\n';
+        }
+    }
+
     public void writeToStream(OutputStream out) throws IOException {
-        out.write(String.format("%s 0000000000 %010d\n", command.getCode(), seqNo).getBytes(StandardCharsets.UTF_8));
+        writeHeader(out, command, seqNo);
+        writeObjectsToStream(out);
+        writeEnd(out);
+    }
 
+    // The number of bytes writeToStream produces. Objects dropped by a filter are not counted.
+    int getEncodedLength() {
+        LengthCounter counter = new LengthCounter();
+        try {
+            writeToStream(counter);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return counter.getLength();
+    }
+
+    // Writes the frame's key/value pairs, routing objects, payload objects, and any raw objects,
+    // without the frame header or end marker
+    void writeObjectsToStream(OutputStream out) throws IOException {
         for (KVPair pair : kvPairs) {
             pair.writeToStream(out);
         }
@@ -180,8 +275,31 @@ class Frame {
         for (PayloadObject po : payloadObjects) {
             po.writeToStream(out);
         }
+        if (rawObjects != null) {
+            out.write(rawObjects, 0, rawObjectsLength);
+        }
+    }
+
+    // Equivalent to formatting "%s 0000000000 %010d\n", without allocating
+    static void writeHeader(OutputStream out, Command command, int seqNo) throws IOException {
+        out.write(command.getCodeBytes());
+        out.write(EMPTY_LENGTH_FIELD);
+        for (int divisor = 1000000000; divisor > 0; divisor /= 10) {
+            out.write('0' + (seqNo / divisor) % 10);
+        }
+        out.write('\n');
+    }
 
-        out.write("end\n".getBytes(StandardCharsets.UTF_8));
+    static void writeEnd(OutputStream out) throws IOException {
+        out.write(END_MARKER);
+    }
+
+    // Writes a non-negative integer in decimal, without allocating
+    static void writeDecimal(OutputStream out, int value) throws IOException {
+        if (value >= 10) {
+            writeDecimal(out, value / 10);
+        }
+        out.write('0' + value % 10);
     }
 
     @Override
@@ -202,32 +320,108 @@ class Frame {
         }
     }
 
-    private static byte[] readUntil(InputStream in, byte end) throws IOException {
-        List<Byte> bytes = new ArrayList<>();
-        int b = in.read();
-        while (b != -1 && (byte)b != end) {
-            bytes.add((byte)b);
-            b = in.read();
+    /**
+     * Discards the rest of a malformed frame, leaving the stream at the start of the next
+     * well-formed frame header. The length field of a header is not reliably filled in (this client
+     * writes zero), so each line boundary is checked in turn for a header with a known command and
+     * numeric fields. The stream must support mark and reset.
+     * @return The number of bytes discarded
+     */
+    static long skipToNextFrame(InputStream stream) throws IOException {
+        byte[] header = new byte[BW_HEADER_LEN];
+        long skipped = 0;
+        while (true) {
+            stream.mark(BW_HEADER_LEN);
+            readFully(stream, header);
+            stream.reset();
+            if (isValidHeader(header)) {
+                return skipped;
+            }
+            int b;
+            do {
+                b = stream.read();
+                if (b < 0) {
+                    throw new EOFException("Stream ended while looking for the next frame");
+                }
+                skipped++;
+            } while (b != '\n');
         }
-        if (b != -1) {
-            bytes.add((byte) b); // Add end byte
+    }
+
+    // Checks for the header layout "cmd 0000000000 0000000000\n" and a known command
+    private static boolean isValidHeader(byte[] header) {
+        if (header[4] != ' ' || header[15] != ' ' || header[BW_HEADER_LEN - 1] != '\n') {
+            return false;
         }
+        for (int i = 5; i < BW_HEADER_LEN - 1; i++) {
+            if (i != 15 && (header[i] < '0' || header[i] > '9')) {
+                return false;
+            }
+        }
+        return Command.fromCode(new String(header, 0, 4, StandardCharsets.UTF_8)) != null;
+    }
 
-        byte[] retVal = new byte[bytes.size()];
-        for (int i = 0; i < bytes.size(); i++) {
-            retVal[i] = bytes.get(i);
+    // A single read from a socket may return fewer bytes than requested
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        readFully(in, buffer, 0, buffer.length);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int n = in.read(buffer, offset, end - offset);
+            if (n < 0) {
+                throw new EOFException("Stream ended partway through a frame");
+            }
+            offset += n;
+        }
+    }
+
+    // Discards an object body and its trailing newline
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long n = in.skip(count);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Stream ended partway through a frame");
+                }
+                n = 1;
+            }
+            count -= n;
         }
-        return retVal;
     }
 
     // Returned string does not contain the terminating newline
     private static String readLineFromStream(InputStream stream) throws IOException {
-        byte[] bytes = readUntil(stream, (byte)'\n');
-        String line = new String(bytes, StandardCharsets.UTF_8);
-        if (line.endsWith("\n")) {
-            return line.substring(0, line.length() - 1);
-        } else {
-            return line;
+        byte[] bytes = new byte[64];
+        int length = 0;
+        int b = stream.read();
+        while (b != -1 && b != '\n') {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) b;
+            b = stream.read();
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Discards what is written to it, keeping only the count
+    static class LengthCounter extends OutputStream {
+        private int length;
+
+        int getLength() {
+            return length;
+        }
+
+        @Override
+        public void write(int b) {
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            length += len;
         }
     }
 
@@ -0,0 +1,191 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the handler callbacks that a client runs on its listener thread. Any callback still
+ * running after the time budget is reported once, with a stack sample of the listener thread
+ * taken at that moment. Optionally, a message handler reported often enough is isolated: its
+ * later messages are delivered on a separate executor so that it no longer holds up frames for
+ * every other sequence number.
+ * @see BosswaveClient#setHandlerWatchdog(HandlerWatchdog)
+ */
+public class HandlerWatchdog {
+    private final long budgetNanos;
+    private final SlowHandlerListener listener;
+    private int isolateAfter;
+    private Executor isolationExecutor;
+    // The default isolation executor, which stop shuts down; null if the caller supplied one
+    private ExecutorService ownedExecutor;
+
+    private final Thread watcher;
+    private volatile Thread listenerThread;
+    private volatile boolean stopped;
+
+    // The callback currently running on the listener thread, written only by that thread
+    private volatile Object currentHandler;
+    private volatile Command currentCommand;
+    private volatile int currentSeqNo;
+    private volatile long currentStart;
+    private volatile long invocation;
+    private long lastReported = -1;
+
+    // Offenses per handler; weak so that finished handlers can be collected
+    private final Map<Object, Integer> offenses;
+    private final Map<Object, Boolean> isolated;
+
+    public interface SlowHandlerListener {
+        // Called on the watchdog's own thread while the slow handler is still running
+        void onSlowHandler(SlowHandlerReport report);
+    }
+
+    /**
+     * @param budgetMillis How long a single handler callback may run before it is reported
+     * @param listener Receives a report for every callback that exceeds the budget
+     */
+    public HandlerWatchdog(long budgetMillis, SlowHandlerListener listener) {
+        if (budgetMillis <= 0) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.listener = listener;
+        offenses = Collections.synchronizedMap(new WeakHashMap<Object, Integer>());
+        isolated = Collections.synchronizedMap(new WeakHashMap<Object, Boolean>());
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "bosswave-handler-watchdog");
+        watcher.setDaemon(true);
+    }
+
+    /**
+     * Moves a message handler off the listener thread once it has exceeded the budget the given
+     * number of times. Its messages, and the end of its query results, are then delivered in
+     * order on the executor.
+     * @param offenses The number of slow callbacks after which a handler is isolated
+     * @param executor Runs isolated handlers. Must run tasks one at a time, in order, to preserve
+     *                 message order. If null, a single daemon thread is used, and shut down when
+     *                 the client closes. An executor passed in is left for the caller to shut down.
+     */
+    public HandlerWatchdog setIsolation(int offenses, Executor executor) {
+        if (offenses <= 0) {
+            throw new IllegalArgumentException("Offense count must be positive");
+        }
+        isolateAfter = offenses;
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+            ownedExecutor = null;
+        }
+        if (executor == null) {
+            ownedExecutor = defaultIsolationExecutor();
+            executor = ownedExecutor;
+        }
+        isolationExecutor = executor;
+        return this;
+    }
+
+    public boolean isIsolated(Object handler) {
+        return isolated.containsKey(handler);
+    }
+
+    void attach(Thread thread) {
+        if (listenerThread != null) {
+            throw new IllegalStateException("Watchdog is already attached to a client");
+        }
+        listenerThread = thread;
+        watcher.start();
+    }
+
+    void stop() {
+        stopped = true;
+        watcher.interrupt();
+        if (ownedExecutor != null) {
+            // Messages already handed over are still delivered
+            ownedExecutor.shutdown();
+        }
+    }
+
+    Executor getIsolationExecutor() {
+        return isolationExecutor;
+    }
+
+    // Called on the listener thread just before a handler callback runs
+    void begin(Object handler, Command command, int seqNo) {
+        currentCommand = command;
+        currentSeqNo = seqNo;
+        currentStart = System.nanoTime();
+        currentHandler = handler;
+        invocation++;
+    }
+
+    // Called on the listener thread once the callback has returned
+    void end() {
+        currentHandler = null;
+    }
+
+    private void watch() {
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(1), budgetNanos / 4);
+        try {
+            while (!stopped) {
+                TimeUnit.NANOSECONDS.sleep(period);
+                check();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private void check() {
+        long id = invocation;
+        Object handler = currentHandler;
+        Command command = currentCommand;
+        int seqNo = currentSeqNo;
+        long elapsed = System.nanoTime() - currentStart;
+        if (handler == null || id == lastReported || elapsed < budgetNanos) {
+            return;
+        }
+        StackTraceElement[] stack = listenerThread.getStackTrace();
+        if (invocation != id || currentHandler != handler) {
+            // The callback finished while we were looking
+            return;
+        }
+        lastReported = id;
+
+        int count;
+        synchronized (offenses) {
+            Integer previous = offenses.get(handler);
+            count = (previous == null ? 1 : previous + 1);
+            offenses.put(handler, count);
+        }
+        boolean isolate = isolateAfter > 0 && count >= isolateAfter && handler instanceof MessageHandler;
+        if (isolate) {
+            isolated.put(handler, Boolean.TRUE);
+        }
+        if (listener != null) {
+            listener.onSlowHandler(new SlowHandlerReport(handler, command, seqNo, elapsed, stack, count, isolate));
+        }
+    }
+
+    // Discards tasks once shut down, since the listener may deliver a last message while closing
+    private static ExecutorService defaultIsolationExecutor() {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "bosswave-isolated-handlers");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+}
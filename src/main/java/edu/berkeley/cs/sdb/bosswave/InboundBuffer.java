@@ -0,0 +1,188 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of decoded frames between the thread reading from the router and the thread
+ * running handlers. Slots are allocated up front and reused. When the ring is full, each frame is
+ * handled according to the overload policy of the subscription it belongs to.
+ */
+class InboundBuffer {
+    private final Slot[] slots;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+    // Queued frames of conflating subscriptions, by subscription and URI
+    private final Map<ConflationKey, Slot> conflatable;
+    private final InboundBufferStats stats;
+
+    private int head;
+    private int count;
+    private boolean stopped;
+
+    private static class Slot {
+        private Frame frame;
+        private int seqNo;
+        private ConflationKey key;
+        // When the slot was filled; a conflated frame keeps the time of the one it replaced
+        private long queuedNanos;
+    }
+
+    private static class ConflationKey {
+        private final int seqNo;
+        private final String uri;
+
+        private ConflationKey(int seqNo, String uri) {
+            this.seqNo = seqNo;
+            this.uri = uri;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ConflationKey)) {
+                return false;
+            }
+            ConflationKey other = (ConflationKey) obj;
+            return seqNo == other.seqNo && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * seqNo + uri.hashCode();
+        }
+    }
+
+    InboundBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+        conflatable = new HashMap<>();
+        stats = new InboundBufferStats(capacity);
+    }
+
+    InboundBufferStats getStats() {
+        return stats;
+    }
+
+    void put(Frame frame, OverloadPolicy policy) throws InterruptedException {
+        lock.lock();
+        try {
+            ConflationKey key = null;
+            if (policy == OverloadPolicy.CONFLATE) {
+                byte[] uri = frame.getFirstValue("uri");
+                key = new ConflationKey(frame.getSeqNo(), uri == null ? "" : new String(uri, StandardCharsets.UTF_8));
+                Slot queued = conflatable.get(key);
+                if (queued != null) {
+                    queued.frame = frame;
+                    stats.recordConflated();
+                    return;
+                }
+            }
+
+            if (count == slots.length) {
+                if (policy == OverloadPolicy.DROP_NEWEST ||
+                        policy == OverloadPolicy.DROP_OLDEST) {
+                    stats.recordDropped();
+                    if (policy == OverloadPolicy.DROP_NEWEST || !removeOldest(frame.getSeqNo())) {
+                        return;
+                    }
+                } else {
+                    stats.recordBlocked();
+                    while (count == slots.length && !stopped) {
+                        notFull.await();
+                    }
+                }
+            }
+            if (stopped) {
+                return;
+            }
+
+            Slot slot = slots[(head + count) % slots.length];
+            slot.frame = frame;
+            slot.seqNo = frame.getSeqNo();
+            slot.key = key;
+            slot.queuedNanos = System.nanoTime();
+            if (key != null) {
+                conflatable.put(key, slot);
+            }
+            count++;
+            stats.recordDepth(count);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns null once the buffer has been stopped
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0 && !stopped) {
+                notEmpty.await();
+            }
+            if (stopped) {
+                return null;
+            }
+            Slot slot = slots[head];
+            Frame frame = slot.frame;
+            stats.recordQueueWait(System.nanoTime() - slot.queuedNanos);
+            clear(slot);
+            head = (head + 1) % slots.length;
+            count--;
+            stats.recordDepth(count);
+            notFull.signal();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frees the slot of the oldest message for a subscription, shifting older frames up by one
+    private boolean removeOldest(int seqNo) {
+        for (int i = 0; i < count; i++) {
+            Slot slot = slots[(head + i) % slots.length];
+            // The subscription's response shares its sequence number and is never dropped
+            if (slot.seqNo == seqNo && slot.frame.getCommand() == Command.RESULT) {
+                for (int j = i; j > 0; j--) {
+                    slots[(head + j) % slots.length] = slots[(head + j - 1) % slots.length];
+                }
+                clear(slot);
+                slots[head] = slot;
+                head = (head + 1) % slots.length;
+                count--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clear(Slot slot) {
+        if (slot.key != null) {
+            conflatable.remove(slot.key);
+            slot.key = null;
+        }
+        slot.frame = null;
+    }
+}
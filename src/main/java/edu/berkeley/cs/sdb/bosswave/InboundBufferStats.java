@@ -0,0 +1,99 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters for a client's inbound buffer, for sizing it under bursty load
+public class InboundBufferStats {
+    private final int capacity;
+    private final AtomicLong highWaterMark;
+    private final AtomicLong droppedCount;
+    private final AtomicLong conflatedCount;
+    private final AtomicLong blockedCount;
+    private final AtomicLong dispatchedCount;
+    private final AtomicLong totalQueueWaitNanos;
+    private final AtomicLong maxQueueWaitNanos;
+    private volatile int depth;
+
+    InboundBufferStats(int capacity) {
+        this.capacity = capacity;
+        highWaterMark = new AtomicLong(0);
+        droppedCount = new AtomicLong(0);
+        conflatedCount = new AtomicLong(0);
+        blockedCount = new AtomicLong(0);
+        dispatchedCount = new AtomicLong(0);
+        totalQueueWaitNanos = new AtomicLong(0);
+        maxQueueWaitNanos = new AtomicLong(0);
+    }
+
+    void recordDepth(int depth) {
+        this.depth = depth;
+        if (depth > highWaterMark.get()) {
+            highWaterMark.set(depth);
+        }
+    }
+
+    void recordDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    void recordConflated() {
+        conflatedCount.incrementAndGet();
+    }
+
+    void recordBlocked() {
+        blockedCount.incrementAndGet();
+    }
+
+    void recordQueueWait(long waitNanos) {
+        dispatchedCount.incrementAndGet();
+        totalQueueWaitNanos.addAndGet(waitNanos);
+        long max = maxQueueWaitNanos.get();
+        while (waitNanos > max && !maxQueueWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxQueueWaitNanos.get();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // The number of frames waiting to be dispatched
+    public int getDepth() {
+        return depth;
+    }
+
+    // The most frames that have been waiting at once
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    // Messages discarded under the DROP_OLDEST and DROP_NEWEST policies
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // Messages replaced by a newer one for the same URI under the CONFLATE policy
+    public long getConflatedCount() {
+        return conflatedCount.get();
+    }
+
+    // The number of times the reader had to wait for room in a full buffer
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    // The number of frames taken from the buffer by the dispatch thread
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    // How long frames waited in the buffer before dispatch, which the DISPATCH event does not cover
+    public long getMeanQueueWaitNanos() {
+        long count = dispatchedCount.get();
+        return (count == 0 ? 0 : totalQueueWaitNanos.get() / count);
+    }
+
+    public long getMaxQueueWaitNanos() {
+        return maxQueueWaitNanos.get();
+    }
+}
@@ -0,0 +1,48 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency statistics for one outbound priority lane, measured from the moment a frame is queued
+ * to the moment it has been written to the socket.
+ */
+public class LaneStats {
+    private final AtomicLong frameCount;
+    private final AtomicLong byteCount;
+    private final AtomicLong totalLatencyNanos;
+    private final AtomicLong maxLatencyNanos;
+
+    LaneStats() {
+        frameCount = new AtomicLong(0);
+        byteCount = new AtomicLong(0);
+        totalLatencyNanos = new AtomicLong(0);
+        maxLatencyNanos = new AtomicLong(0);
+    }
+
+    void record(int frameLength, long latencyNanos) {
+        frameCount.incrementAndGet();
+        byteCount.addAndGet(frameLength);
+        totalLatencyNanos.addAndGet(latencyNanos);
+        long max = maxLatencyNanos.get();
+        while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+            max = maxLatencyNanos.get();
+        }
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public long getMeanLatencyNanos() {
+        long count = frameCount.get();
+        return (count == 0 ? 0 : totalLatencyNanos.get() / count);
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+}
@@ -0,0 +1,82 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the most recent message seen on each persisted URI. Entries expire after a
+ * fixed time to live and the least recently used entry is evicted once the cache is full. Each
+ * entry remembers the primary access chain it was queried with and only answers lookups made
+ * with the same chain; a null chain stands for the client's own entity.
+ */
+class LastValueCache {
+    private final long ttlNanos;
+    private final Map<String, CachedValue> entries;
+
+    LastValueCache(final int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache must hold at least one entry");
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Negative cache time to live");
+        }
+        ttlNanos = ttlMillis * 1000000L;
+        entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // Returns null if there is no entry for the URI, if it was cached under a different primary
+    // access chain, or if the entry has expired
+    synchronized Message get(String uri, String primaryAccessChain) {
+        CachedValue entry = entries.get(uri);
+        if (entry == null || !sameChain(entry.primaryAccessChain, primaryAccessChain)) {
+            return null;
+        }
+        if (System.nanoTime() - entry.timestamp > ttlNanos) {
+            entries.remove(uri);
+            return null;
+        }
+        return entry.message;
+    }
+
+    // Replaces any entry for the URI, including one cached under a different chain
+    synchronized void put(String uri, String primaryAccessChain, Message message) {
+        entries.put(uri, new CachedValue(message, primaryAccessChain, System.nanoTime()));
+    }
+
+    synchronized void invalidate(String uri) {
+        entries.remove(uri);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    static boolean isCacheable(String uri) {
+        return !UriMatcher.hasWildcard(uri);
+    }
+
+    private static boolean sameChain(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class CachedValue {
+        private final Message message;
+        private final String primaryAccessChain;
+        private final long timestamp;
+
+        private CachedValue(Message message, String primaryAccessChain, long timestamp) {
+            this.message = message;
+            this.primaryAccessChain = primaryAccessChain;
+            this.timestamp = timestamp;
+        }
+    }
+}
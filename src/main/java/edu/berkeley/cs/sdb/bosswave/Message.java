@@ -31,4 +31,30 @@ public class Message {
     public List<PayloadObject> getPayloadObjects() {
         return payloadObjects;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (o == null) {
+            return false;
+        } else if (!(o instanceof Message)) {
+            return false;
+        } else {
+            Message other = (Message) o;
+            return this.from.equals(other.from) &&
+                   this.uri.equals(other.uri) &&
+                   this.routingObjects.equals(other.routingObjects) &&
+                   this.payloadObjects.equals(other.payloadObjects);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int result = from.hashCode();
+        result = 31 * result + uri.hashCode();
+        result = 31 * result + routingObjects.hashCode();
+        result = 31 * result + payloadObjects.hashCode();
+        return result;
+    }
 }
@@ -0,0 +1,21 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Receives instrumentation events from a {@link BosswaveClient}. Events are delivered on the
+ * thread that sends or receives the frame, including the client's listener thread, so
+ * implementations must be thread-safe and must not block.
+ * @see BosswaveClient#addMetricsListener(MetricsListener)
+ */
+public interface MetricsListener {
+    // With priority lanes enabled, a frame counts as sent once it is queued
+    void onFrameSent(Command command);
+
+    void onFrameReceived(Command command);
+
+    void onBytesSent(int count);
+
+    void onBytesReceived(int count);
+
+    // Called when the router responds to a request, with the time since the request was sent
+    void onResponse(Command command, long latencyNanos, boolean okay);
+}
@@ -0,0 +1,238 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Discovers every URI beneath a root by issuing LIST requests recursively. Up to a fixed number
+ * of LIST requests are kept in flight at once rather than waiting for each to finish before
+ * descending, so the crawl is limited by router throughput rather than round-trip latency.
+ */
+public class NamespaceCrawler {
+    // Tells the worker thread to stop
+    private static final Object POISON = new Object();
+
+    private final BosswaveClient client;
+    private final int maxOutstanding;
+
+    /**
+     * @param client A connected client whose entity is permitted to list the namespace
+     * @param maxOutstanding The maximum number of LIST requests in flight at any time
+     */
+    public NamespaceCrawler(BosswaveClient client, int maxOutstanding) {
+        if (maxOutstanding <= 0) {
+            throw new IllegalArgumentException("Must allow at least one outstanding request");
+        }
+        this.client = client;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Starts crawling beneath the request's URI. Each discovered URI is passed to the handler
+     * exactly once, from the client's listener thread, and the handler is finished once the
+     * whole tree has been listed. The request's access chain and options are reused for every
+     * LIST issued during the crawl.
+     */
+    public void crawl(ListRequest root, ListResultHandler handler) {
+        crawl(root, null, handler);
+    }
+
+    /**
+     * Like {@link #crawl(ListRequest, ListResultHandler)}, but reports a crawl abandoned because a
+     * LIST could not be sent. The response handler then receives an error response, after which
+     * the result handler is finished without waiting for the LISTs still in flight. A LIST the
+     * router rejects is not a failure; its URI is treated as having no children.
+     */
+    public void crawl(ListRequest root, ResponseHandler rh, ListResultHandler handler) {
+        new Crawl(root, rh, handler).start();
+    }
+
+    /**
+     * Starts crawling beneath the request's URI, returning discovered URIs as a blocking iterator.
+     * @see #crawl(ListRequest, ListResultHandler)
+     */
+    public ResultStream<String> crawlStream(ListRequest root, int capacity) {
+        StreamHandler handler = new StreamHandler(new ResultStream<String>(capacity));
+        crawl(root, handler, handler);
+        return handler.stream;
+    }
+
+    private static ListRequest childRequest(ListRequest root, String uri) {
+        ListRequest.Builder builder = new ListRequest.Builder(uri);
+        builder.setPrimaryAccessChain(root.getPrimaryAccessChain());
+        builder.setExpiry(root.getExpiry());
+        if (root.getExpiryDelta() != null) {
+            builder.setExiryDelta(root.getExpiryDelta());
+        }
+        builder.setChainElaborationLevel(root.getElabLevel());
+        builder.setAutoChain(root.autoChain());
+        for (RoutingObject ro : root.getRoutingObjects()) {
+            builder.addRoutingObject(ro);
+        }
+        return builder.build();
+    }
+
+    private class Crawl implements Runnable {
+        private final ListRequest root;
+        private final ResponseHandler rh;
+        private final ListResultHandler handler;
+        private final Semaphore window;
+        private final BlockingQueue<Object> work;
+        private final Set<String> visited;
+        // URIs that have been queued but whose LIST has not yet finished
+        private final AtomicInteger pending;
+        private final AtomicBoolean finished;
+
+        private Crawl(ListRequest root, ResponseHandler rh, ListResultHandler handler) {
+            this.root = root;
+            this.rh = rh;
+            this.handler = handler;
+            window = new Semaphore(maxOutstanding);
+            work = new LinkedBlockingQueue<>();
+            visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            pending = new AtomicInteger(0);
+            finished = new AtomicBoolean(false);
+        }
+
+        private void start() {
+            visited.add(root.getUri());
+            enqueue(root.getUri());
+            Thread worker = new Thread(this, "bosswave-crawler");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        private void enqueue(String uri) {
+            pending.incrementAndGet();
+            work.add(uri);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Object item = work.take();
+                    if (item == POISON) {
+                        return;
+                    }
+                    String uri = (String) item;
+                    window.acquire();
+                    Node node = new Node(this);
+                    try {
+                        client.list(uri.equals(root.getUri()) ? root : childRequest(root, uri), node, node);
+                    } catch (IOException e) {
+                        fail("Failed to issue LIST for " + uri + ": " + e.getMessage());
+                        node.finish();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void onChild(String child) {
+            if (!finished.get() && visited.add(child)) {
+                handler.onResult(child);
+                enqueue(child);
+            }
+        }
+
+        private void onNodeFinished() {
+            window.release();
+            if (pending.decrementAndGet() == 0) {
+                work.add(POISON);
+                finish();
+            }
+        }
+
+        // Abandons the crawl; LISTs already in flight still release their permits as they finish
+        private void fail(String reason) {
+            if (finished.get()) {
+                return;
+            }
+            if (rh != null) {
+                rh.onResponseReceived(new Response("error", reason));
+            }
+            for (Object item = work.poll(); item != null; item = work.poll()) {
+                if (item != POISON) {
+                    pending.decrementAndGet();
+                }
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                handler.finish();
+            }
+        }
+    }
+
+    // Tracks a single LIST so that it completes exactly once, whether it finishes or is rejected
+    private static class Node implements ResponseHandler, ListResultHandler {
+        private final Crawl crawl;
+        private final AtomicBoolean done;
+
+        private Node(Crawl crawl) {
+            this.crawl = crawl;
+            done = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            if (!result.getStatus().equals("okay")) {
+                // A rejected LIST produces no results; treat the node as a leaf
+                finish();
+            }
+        }
+
+        @Override
+        public void onResult(String result) {
+            crawl.onChild(result);
+        }
+
+        @Override
+        public void finish() {
+            if (done.compareAndSet(false, true)) {
+                crawl.onNodeFinished();
+            }
+        }
+    }
+
+    // Fails the stream instead of ending it normally if the crawl is abandoned
+    private static class StreamHandler implements ResponseHandler, ListResultHandler {
+        private final ResultStream<String> stream;
+        private volatile String failureReason;
+
+        private StreamHandler(ResultStream<String> stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            failureReason = result.getReason();
+        }
+
+        @Override
+        public void onResult(String result) {
+            stream.offer(result);
+        }
+
+        @Override
+        public void finish() {
+            if (failureReason != null) {
+                stream.fail(failureReason);
+            } else {
+                stream.finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The payload object types and routing object numbers a subscription wants decoded. Bodies of
+ * other objects in its results are skipped by the frame reader without being copied. A raw filter
+ * keeps the accepted objects encoded instead of decoding them.
+ */
+class ObjectFilter {
+    // Null when all objects of that kind are accepted
+    private final PayloadObject.Type[] payloadTypes;
+    private final boolean[] routingObjects;
+    private final boolean raw;
+
+    private ObjectFilter(PayloadObject.Type[] payloadTypes, boolean[] routingObjects, boolean raw) {
+        this.payloadTypes = payloadTypes;
+        this.routingObjects = routingObjects;
+        this.raw = raw;
+    }
+
+    // Returns null if the request accepts every object and they are to be decoded
+    static ObjectFilter fromRequest(SubscribeRequest request, boolean raw) {
+        Set<PayloadObject.Type> types = request.getAcceptedPayloadTypes();
+        Set<Integer> numbers = request.getAcceptedRoutingObjects();
+        if (types == null && numbers == null && !raw) {
+            return null;
+        }
+        PayloadObject.Type[] typeArray = null;
+        if (types != null) {
+            List<PayloadObject.Type> list = new ArrayList<>(types);
+            typeArray = list.toArray(new PayloadObject.Type[list.size()]);
+        }
+        boolean[] numberArray = null;
+        if (numbers != null) {
+            numberArray = new boolean[256];
+            for (int number : numbers) {
+                numberArray[number] = true;
+            }
+        }
+        return new ObjectFilter(typeArray, numberArray, raw);
+    }
+
+    boolean isRaw() {
+        return raw;
+    }
+
+    boolean acceptsPayloadType(PayloadObject.Type type) {
+        if (payloadTypes == null) {
+            return true;
+        }
+        for (PayloadObject.Type accepted : payloadTypes) {
+            if (accepted.accepts(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean acceptsRoutingObject(int number) {
+        return routingObjects == null || routingObjects[number];
+    }
+}
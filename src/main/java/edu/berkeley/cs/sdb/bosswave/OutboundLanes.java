@@ -0,0 +1,199 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes encoded frames to a stream from a dedicated thread, always preferring queued control
+ * frames over queued bulk frames. A frame is never split, so a control frame queued while a
+ * bulk frame is being written goes out as soon as that frame is complete. The stream is only
+ * flushed once both lanes are empty, so bursts of small frames share socket writes. Each lane
+ * holds a bounded number of bytes; a caller enqueuing into a full lane waits for room, just as
+ * it would have waited on a blocking socket write.
+ */
+class OutboundLanes implements Runnable {
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    private final OutputStream out;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+    private final Queue<QueuedFrame> control;
+    private final Queue<QueuedFrame> bulk;
+    private final int maxQueuedBytes;
+    private int controlBytes;
+    private int bulkBytes;
+    private final LaneStats controlStats;
+    private final LaneStats bulkStats;
+    private final Thread writerThread;
+
+    private boolean stopped;
+    private IOException failure;
+
+    /**
+     * @param maxQueuedBytes The number of bytes each lane may hold. A frame larger than this is
+     *                       still accepted once its lane is empty.
+     */
+    OutboundLanes(OutputStream out, int maxQueuedBytes) {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("Lanes must hold at least one byte");
+        }
+        this.out = out;
+        this.maxQueuedBytes = maxQueuedBytes;
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+        control = new ArrayDeque<>();
+        bulk = new ArrayDeque<>();
+        controlStats = new LaneStats();
+        bulkStats = new LaneStats();
+        writerThread = new Thread(this, "bosswave-writer");
+        writerThread.setDaemon(true);
+        stopped = false;
+    }
+
+    void start() {
+        writerThread.start();
+    }
+
+    // Stops accepting frames and waits briefly for those already queued to be written
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writerThread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Blocks while the frame's lane is full
+    void enqueue(byte[] frame, boolean isBulk) throws IOException {
+        lock.lock();
+        try {
+            while (failure == null && !stopped) {
+                int queuedBytes = (isBulk ? bulkBytes : controlBytes);
+                if (queuedBytes == 0 || queuedBytes + frame.length <= maxQueuedBytes) {
+                    break;
+                }
+                notFull.await();
+            }
+            if (failure != null) {
+                throw new IOException("Outbound writer failed", failure);
+            }
+            if (stopped) {
+                throw new IOException("Client is closed");
+            }
+            QueuedFrame queued = new QueuedFrame(frame, System.nanoTime());
+            if (isBulk) {
+                bulk.add(queued);
+                bulkBytes += frame.length;
+            } else {
+                control.add(queued);
+                controlBytes += frame.length;
+            }
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for room in the outbound queue");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    LaneStats getControlStats() {
+        return controlStats;
+    }
+
+    LaneStats getBulkStats() {
+        return bulkStats;
+    }
+
+    int getControlQueueDepth() {
+        lock.lock();
+        try {
+            return control.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getBulkQueueDepth() {
+        lock.lock();
+        try {
+            return bulk.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                QueuedFrame next;
+                LaneStats stats;
+                boolean drained;
+                lock.lock();
+                try {
+                    while (control.isEmpty() && bulk.isEmpty() && !stopped) {
+                        notEmpty.await();
+                    }
+                    if (control.isEmpty() && bulk.isEmpty()) {
+                        return;
+                    }
+                    if (!control.isEmpty()) {
+                        next = control.poll();
+                        controlBytes -= next.bytes.length;
+                        stats = controlStats;
+                    } else {
+                        next = bulk.poll();
+                        bulkBytes -= next.bytes.length;
+                        stats = bulkStats;
+                    }
+                    notFull.signalAll();
+                    drained = control.isEmpty() && bulk.isEmpty();
+                } finally {
+                    lock.unlock();
+                }
+
+                out.write(next.bytes);
+                if (drained) {
+                    out.flush();
+                }
+                stats.record(next.bytes.length, System.nanoTime() - next.enqueuedAt);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                failure = e;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class QueuedFrame {
+        private final byte[] bytes;
+        private final long enqueuedAt;
+
+        private QueuedFrame(byte[] bytes, long enqueuedAt) {
+            this.bytes = bytes;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
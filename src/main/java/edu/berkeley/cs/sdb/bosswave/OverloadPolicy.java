@@ -0,0 +1,18 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * What a client with an inbound buffer does with a subscription's message when the buffer is full.
+ * @see BosswaveClient#enableInboundBuffer(int)
+ * @see SubscribeRequest.Builder#setOverloadPolicy(OverloadPolicy)
+ */
+public enum OverloadPolicy {
+    // Stop reading from the router until there is room, throttling every subscription
+    BLOCK,
+    // Discard the oldest queued message for the same subscription to make room
+    DROP_OLDEST,
+    // Discard the message that just arrived
+    DROP_NEWEST,
+    // Replace a queued message for the same subscription and URI, whether or not the buffer is full,
+    // and block otherwise
+    CONFLATE;
+}
@@ -6,6 +6,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class PayloadObject {
+    private static final byte[] HEADER_PREFIX = "po ".getBytes(StandardCharsets.UTF_8);
+
     private final Type type;
     private final byte[] content;
 
@@ -18,13 +20,30 @@ public class PayloadObject {
         return content.clone();
     }
 
+    Type getType() {
+        return type;
+    }
+
+    // Not a copy, so it must not be modified
+    byte[] getContentArray() {
+        return content;
+    }
+
     void writeToStream(OutputStream out) throws IOException {
-        String header = String.format("po %s %d\n", type, content.length);
-        out.write(header.getBytes(StandardCharsets.UTF_8));
+        writeHeader(out, type, content.length);
         out.write(content);
         out.write('\n');
     }
 
+    // Writes the "po <type> <length>" line that precedes a payload object's content
+    static void writeHeader(OutputStream out, Type type, int length) throws IOException {
+        out.write(HEADER_PREFIX);
+        out.write(type.getEncoded());
+        out.write(' ');
+        Frame.writeDecimal(out, length);
+        out.write('\n');
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == this) {
@@ -39,9 +58,15 @@ public class PayloadObject {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + Arrays.hashCode(content);
+    }
+
     public static class Type {
         private final byte[] octet;
         private final int number;
+        private volatile byte[] encoded;
 
         public Type(byte[] octet) {
             this.octet = octet;
@@ -125,6 +150,24 @@ public class PayloadObject {
             }
         }
 
+        // The type as it appears in a payload object header, cached after the first use
+        byte[] getEncoded() {
+            byte[] result = encoded;
+            if (result == null) {
+                result = toString().getBytes(StandardCharsets.UTF_8);
+                encoded = result;
+            }
+            return result;
+        }
+
+        // True if the other type has this type's octet or number, whichever this type specifies
+        boolean accepts(Type other) {
+            if (octet != null && other.octet != null && Arrays.equals(octet, other.octet)) {
+                return true;
+            }
+            return number >= 0 && number == other.number;
+        }
+
         @Override
         public String toString() {
             if (octet != null && number > 0) {
@@ -150,6 +193,11 @@ public class PayloadObject {
             }
         }
 
+        @Override
+        public int hashCode() {
+            return 31 * number + Arrays.hashCode(octet);
+        }
+
         private static boolean validateBothType(byte[] octet, int number) {
             int octetValue = (octet[0] << 24) + (octet[1] << 16) + (octet[2] << 8) + octet[3];
             return octetValue == number;
@@ -0,0 +1,47 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A publish request whose key/value headers and routing objects have been encoded once, ahead of
+ * time, so that repeated publishes to the same URI only need to encode a sequence number and
+ * their payload objects. Instances are immutable and may be shared between threads.
+ * @see BosswaveClient#publish(PreparedPublish, java.util.List, ResponseHandler)
+ */
+public class PreparedPublish {
+    private final Command command;
+    private final byte[] encodedHeaders;
+
+    /**
+     * @param request The request to prepare. Its payload objects are ignored; they are supplied
+     *                with each publish instead.
+     */
+    public PreparedPublish(PublishRequest request) {
+        command = (request.isPersist() ? Command.PERSIST : Command.PUBLISH);
+
+        Frame.Builder builder = new Frame.Builder(command, 0);
+        BosswaveClient.addPublishHeaders(builder, request);
+        for (RoutingObject ro : request.getRoutingObjects()) {
+            builder.addRoutingObject(ro);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            builder.build().writeObjectsToStream(out);
+        } catch (IOException e) {
+            // Writing to a ByteArrayOutputStream does not fail
+            throw new RuntimeException(e);
+        }
+        encodedHeaders = out.toByteArray();
+    }
+
+    Command getCommand() {
+        return command;
+    }
+
+    // Callers must not modify the returned array
+    byte[] getEncodedHeaders() {
+        return encodedHeaders;
+    }
+}
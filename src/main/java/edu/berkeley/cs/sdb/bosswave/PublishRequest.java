@@ -98,6 +98,20 @@ public class PublishRequest {
             payloadObjects = new ArrayList<>();
         }
 
+        // Starts from a copy of an existing request
+        public Builder(PublishRequest request) {
+            uri = request.uri;
+            persist = request.persist;
+            expiry = request.getExpiry();
+            expiryDelta = request.expiryDelta;
+            primaryAccessChain = request.primaryAccessChain;
+            doVerify = request.doVerify;
+            elabLevel = request.elabLevel;
+            autoChain = request.autoChain;
+            routingObjects = new ArrayList<>(request.routingObjects);
+            payloadObjects = new ArrayList<>(request.payloadObjects);
+        }
+
         public Builder setUri(String uri) {
             this.uri = uri;
             return this;
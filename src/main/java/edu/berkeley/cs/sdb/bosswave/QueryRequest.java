@@ -123,8 +123,8 @@ public class QueryRequest {
         }
 
         public QueryRequest build() {
-            return new QueryRequest(uri, primaryAccessChain, expiry, expiryDelta, elabLevel, leavePacked,
-                                    autoChain, routingObjects);
+            return new QueryRequest(uri, primaryAccessChain, expiry, expiryDelta, elabLevel, autoChain,
+                                    leavePacked, routingObjects);
         }
 
         public void clearRoutingObjects() {
@@ -0,0 +1,8 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * A MessageHandler that is also told when a query has delivered all of its results.
+ */
+public interface QueryResultHandler extends MessageHandler {
+    void finish();
+}
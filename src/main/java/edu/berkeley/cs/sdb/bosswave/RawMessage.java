@@ -0,0 +1,47 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A message whose routing and payload objects have not been decoded. The objects are kept exactly
+ * as the router encoded them, so the message can be published elsewhere without decoding or
+ * re-encoding them.
+ * @see BosswaveClient#subscribeRaw(SubscribeRequest, ResponseHandler, RawMessageHandler)
+ * @see BosswaveClient#publishRaw(PreparedPublish, RawMessage, ResponseHandler)
+ */
+public class RawMessage {
+    private final String from;
+    private final String uri;
+    private final byte[] objects;
+    private final int length;
+
+    RawMessage(String from, String uri, byte[] objects, int length) {
+        this.from = from;
+        this.uri = uri;
+        this.objects = objects;
+        this.length = length;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    // A read-only view of the encoded objects, in the order they were received
+    public ByteBuffer getObjects() {
+        return ByteBuffer.wrap(objects, 0, length).asReadOnlyBuffer();
+    }
+
+    public int getObjectsLength() {
+        return length;
+    }
+
+    void writeObjectsTo(OutputStream out) throws IOException {
+        out.write(objects, 0, length);
+    }
+}
@@ -0,0 +1,6 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+// Receives the messages of a raw subscription, see BosswaveClient#subscribeRaw
+public interface RawMessageHandler {
+    void onRawMessage(RawMessage message);
+}
@@ -0,0 +1,130 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded, blocking iterator over the results of a LIST or QUERY operation. Results are
+ * buffered as they arrive from the router; when the buffer is full the client's listener thread
+ * waits for the consumer to catch up. While it waits, every other subscription and response on
+ * the client is held up too, so a stream that is abandoned before it ends must be closed, or
+ * the client freezes.
+ *
+ * Closing the stream discards buffered results, stops the client delivering any more, and ends
+ * the iteration, waking a consumer blocked in hasNext on another thread.
+ */
+public class ResultStream<T> implements Iterator<T>, Iterable<T>, Closeable {
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> buffer;
+    private volatile boolean closed;
+    private volatile String failureReason;
+    private Object next;
+    private boolean ended;
+    // Unregisters the client's handler for the operation, may be null
+    private volatile Runnable closeAction;
+
+    ResultStream(int capacity) {
+        buffer = new ArrayBlockingQueue<>(capacity);
+        closed = false;
+        ended = false;
+    }
+
+    // Called by the client's listener thread as results arrive
+    void offer(T result) {
+        if (closed) {
+            return;
+        }
+        try {
+            buffer.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void finish() {
+        if (closed) {
+            return;
+        }
+        try {
+            buffer.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void setCloseAction(Runnable action) {
+        closeAction = action;
+    }
+
+    void fail(String reason) {
+        failureReason = reason;
+        finish();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (ended || closed) {
+            return false;
+        }
+        try {
+            Object item = buffer.take();
+            if (closed) {
+                ended = true;
+                return false;
+            }
+            if (item == END) {
+                ended = true;
+                if (failureReason != null) {
+                    throw new RuntimeException("Bosswave operation failed: " + failureReason);
+                }
+                return false;
+            }
+            next = item;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for results", e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = (T) next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        next = null;
+        Runnable action = closeAction;
+        if (action != null) {
+            action.run();
+        }
+        // Frees any space the listener thread may be waiting on, then wakes a waiting consumer
+        buffer.clear();
+        buffer.offer(END);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A mutable publish request intended to be owned by a single producer and reused for every
+ * message it sends. The headers are encoded once, as with {@link PreparedPublish}, and payload
+ * objects refer directly to caller-owned byte arrays. The client finishes writing the request
+ * before publish returns, so the caller may overwrite the arrays and publish again immediately.
+ * Publishing without a response handler allocates nothing per message.
+ * @see BosswaveClient#publish(ReusablePublishRequest, ResponseHandler)
+ */
+public class ReusablePublishRequest {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private PreparedPublish prepared;
+    private PayloadObject.Type[] types;
+    private byte[][] contents;
+    private int[] offsets;
+    private int[] lengths;
+    private int count;
+
+    /**
+     * @param request Supplies the URI, options and routing objects. Its payload objects are ignored.
+     */
+    public ReusablePublishRequest(PublishRequest request) {
+        prepared = new PreparedPublish(request);
+        types = new PayloadObject.Type[INITIAL_CAPACITY];
+        contents = new byte[INITIAL_CAPACITY][];
+        offsets = new int[INITIAL_CAPACITY];
+        lengths = new int[INITIAL_CAPACITY];
+        count = 0;
+    }
+
+    // Replaces the URI, options and routing objects, keeping the current payload objects
+    public void setRequest(PublishRequest request) {
+        prepared = new PreparedPublish(request);
+    }
+
+    public ReusablePublishRequest clearPayloadObjects() {
+        Arrays.fill(contents, 0, count, null);
+        count = 0;
+        return this;
+    }
+
+    public ReusablePublishRequest addPayloadObject(PayloadObject.Type type, byte[] content) {
+        return addPayloadObject(type, content, 0, content.length);
+    }
+
+    public ReusablePublishRequest addPayloadObject(PayloadObject.Type type, byte[] content, int offset, int length) {
+        if (count == types.length) {
+            grow();
+        }
+        types[count] = type;
+        count++;
+        return setPayloadObject(count - 1, content, offset, length);
+    }
+
+    // Swaps the content of an existing payload object, keeping its type
+    public ReusablePublishRequest setPayloadObject(int index, byte[] content, int offset, int length) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("No payload object at index " + index);
+        }
+        if (offset < 0 || length < 0 || offset + length > content.length) {
+            throw new IndexOutOfBoundsException("Payload object range lies outside its content");
+        }
+        contents[index] = content;
+        offsets[index] = offset;
+        lengths[index] = length;
+        return this;
+    }
+
+    public int getPayloadObjectCount() {
+        return count;
+    }
+
+    // PUBLISH, or PERSIST if the request persists its messages
+    Command getCommand() {
+        return prepared.getCommand();
+    }
+
+    // Writes the complete frame, the caller must hold the client's output stream lock
+    void writeToStream(OutputStream out, int seqNo) throws IOException {
+        Frame.writeHeader(out, prepared.getCommand(), seqNo);
+        out.write(prepared.getEncodedHeaders());
+        for (int i = 0; i < count; i++) {
+            PayloadObject.writeHeader(out, types[i], lengths[i]);
+            out.write(contents[i], offsets[i], lengths[i]);
+            out.write('\n');
+        }
+        Frame.writeEnd(out);
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        contents = Arrays.copyOf(contents, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+    }
+}
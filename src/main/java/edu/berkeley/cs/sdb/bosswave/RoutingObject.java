@@ -38,4 +38,9 @@ public class RoutingObject {
                    Arrays.equals(this.content, other.content);
         }
     }
+
+    @Override
+    public int hashCode() {
+        return 31 * routingObjNum + Arrays.hashCode(content);
+    }
 }
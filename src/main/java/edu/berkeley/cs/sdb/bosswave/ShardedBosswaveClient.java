@@ -0,0 +1,408 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes requests across several routers by consistent hashing on a URI prefix. Each router owns
+ * many points on a hash ring, so adding or removing a router only moves the prefixes adjacent to
+ * its points. Subscriptions are re-established on their new router when a rebalance moves them.
+ * Requests whose prefix contains a wildcard may match URIs on any router and are sent to all;
+ * their response handler is then called once, with the first error or with success once every
+ * router has accepted the request. Until a router has been added, every request throws
+ * IllegalStateException.
+ */
+public class ShardedBosswaveClient implements AutoCloseable {
+    private static final int POINTS_PER_ROUTER = 128;
+
+    private final int prefixSegments;
+    private final Object lock;
+    private final Map<String, BosswaveClient> routers;
+    private final List<Subscription> subscriptions;
+    // Replaced wholesale whenever the set of routers changes, so lookups need no locking
+    private volatile TreeMap<Long, BosswaveClient> ring;
+    private File entityFile;
+
+    /**
+     * @param prefixSegments The number of leading URI segments hashed to choose a router. URIs
+     *                       sharing this many segments always use the same router.
+     */
+    public ShardedBosswaveClient(int prefixSegments) {
+        if (prefixSegments <= 0) {
+            throw new IllegalArgumentException("Must hash at least one URI segment");
+        }
+        this.prefixSegments = prefixSegments;
+        lock = new Object();
+        routers = new LinkedHashMap<>();
+        subscriptions = new ArrayList<>();
+        ring = new TreeMap<>();
+    }
+
+    /**
+     * Sets the entity used on every router, including routers added later.
+     * @param handler Called once per router currently in the ring
+     */
+    public void setEntityFile(File f, ResponseHandler handler) throws IOException {
+        Collection<BosswaveClient> clients;
+        synchronized (lock) {
+            entityFile = f;
+            clients = new ArrayList<>(routers.values());
+        }
+        for (BosswaveClient client : clients) {
+            client.setEntityFile(f, handler);
+        }
+    }
+
+    /**
+     * Connects to a router and adds it to the ring. Subscriptions whose prefix now hashes to the
+     * new router are moved to it.
+     */
+    public void addRouter(String hostName, int port) throws IOException {
+        String name = hostName + ":" + port;
+        BosswaveClient client = new BosswaveClient(hostName, port);
+        client.connect();
+
+        List<Subscription> moved;
+        synchronized (lock) {
+            if (routers.containsKey(name)) {
+                client.close();
+                throw new IllegalArgumentException("Router already present: " + name);
+            }
+            if (entityFile != null) {
+                client.setEntityFile(entityFile, null);
+            }
+            routers.put(name, client);
+            rebuildRing();
+            moved = reassignSubscriptions(client);
+        }
+        resubscribe(moved);
+    }
+
+    /**
+     * Removes a router from the ring and disconnects from it. Its subscriptions are moved to
+     * the routers that now own their prefixes.
+     */
+    public void removeRouter(String hostName, int port) throws IOException {
+        String name = hostName + ":" + port;
+        BosswaveClient removed;
+        List<Subscription> moved;
+        synchronized (lock) {
+            removed = routers.remove(name);
+            if (removed == null) {
+                throw new IllegalArgumentException("Unknown router: " + name);
+            }
+            rebuildRing();
+            moved = reassignSubscriptions(null);
+            for (Subscription subscription : subscriptions) {
+                subscription.owners.remove(removed);
+                subscription.subscribedOn.remove(removed);
+            }
+        }
+        resubscribe(moved);
+        removed.close();
+    }
+
+    public void publish(PublishRequest request, ResponseHandler handler) throws IOException {
+        routerFor(request.getUri()).publish(request, handler);
+    }
+
+    /**
+     * Subscribes on the router owning the request's prefix, or on every router if the prefix
+     * contains a wildcard. When a rebalance moves the subscription, the response handler also
+     * receives the response to the new subscribe.
+     */
+    public void subscribe(SubscribeRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
+        Subscription subscription = new Subscription(request, rh, mh);
+        List<BosswaveClient> targets;
+        synchronized (lock) {
+            // Only kept for rebalancing once it has somewhere to go
+            targets = routersFor(request.getUri());
+            for (BosswaveClient target : targets) {
+                subscription.owners.add(target);
+                subscription.subscribedOn.add(target);
+            }
+            subscriptions.add(subscription);
+        }
+        if (targets.size() == 1) {
+            subscription.subscribeOn(targets.get(0), rh);
+            return;
+        }
+        FanIn fanIn = new FanIn(rh, null, null, targets.size());
+        for (BosswaveClient target : targets) {
+            subscription.subscribeOn(target, fanIn.newShard());
+        }
+    }
+
+    /**
+     * Queries the router owning the request's prefix, or every router if the prefix contains a
+     * wildcard. A QueryResultHandler is finished once every queried router has finished or
+     * rejected the query.
+     */
+    public void query(QueryRequest request, ResponseHandler rh, MessageHandler mh) throws IOException {
+        List<BosswaveClient> targets = routersFor(request.getUri());
+        if (targets.size() == 1) {
+            targets.get(0).query(request, rh, mh);
+            return;
+        }
+        FanIn fanIn = new FanIn(rh, mh, null, targets.size());
+        for (BosswaveClient target : targets) {
+            Shard shard = fanIn.newShard();
+            target.query(request, shard, shard);
+        }
+    }
+
+    /**
+     * Lists the request's URI on the router owning its prefix, or on every router if the prefix
+     * contains a wildcard. The handler is finished once every router has finished or rejected
+     * the request.
+     */
+    public void list(ListRequest request, ResponseHandler rh, ListResultHandler lrh) throws IOException {
+        List<BosswaveClient> targets = routersFor(request.getUri());
+        if (targets.size() == 1) {
+            targets.get(0).list(request, rh, lrh);
+            return;
+        }
+        FanIn fanIn = new FanIn(rh, null, lrh, targets.size());
+        for (BosswaveClient target : targets) {
+            Shard shard = fanIn.newShard();
+            target.list(request, shard, shard);
+        }
+    }
+
+    // The router that owns a URI's prefix
+    public BosswaveClient routerFor(String uri) {
+        TreeMap<Long, BosswaveClient> current = ring;
+        if (current.isEmpty()) {
+            throw new IllegalStateException("No routers have been added");
+        }
+        Map.Entry<Long, BosswaveClient> entry = current.ceilingEntry(hash(routingPrefix(uri)));
+        if (entry == null) {
+            entry = current.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<BosswaveClient> clients;
+        synchronized (lock) {
+            clients = new ArrayList<>(routers.values());
+            routers.clear();
+            ring = new TreeMap<>();
+        }
+        for (BosswaveClient client : clients) {
+            client.close();
+        }
+    }
+
+    // Never empty, so that every fanned-out request has a router to finish it
+    private List<BosswaveClient> routersFor(String uri) {
+        if (UriMatcher.hasWildcard(routingPrefix(uri))) {
+            synchronized (lock) {
+                if (routers.isEmpty()) {
+                    throw new IllegalStateException("No routers have been added");
+                }
+                return new ArrayList<>(routers.values());
+            }
+        }
+        List<BosswaveClient> single = new ArrayList<>(1);
+        single.add(routerFor(uri));
+        return single;
+    }
+
+    private String routingPrefix(String uri) {
+        int end = -1;
+        for (int i = 0; i < prefixSegments; i++) {
+            end = uri.indexOf('/', end + 1);
+            if (end < 0) {
+                return uri;
+            }
+        }
+        return uri.substring(0, end);
+    }
+
+    // Must be called while holding lock
+    private void rebuildRing() {
+        TreeMap<Long, BosswaveClient> next = new TreeMap<>();
+        for (Map.Entry<String, BosswaveClient> router : routers.entrySet()) {
+            for (int i = 0; i < POINTS_PER_ROUTER; i++) {
+                next.put(hash(router.getKey() + "#" + i), router.getValue());
+            }
+        }
+        ring = next;
+    }
+
+    // Must be called while holding lock. Returns the subscriptions that need a new subscribe.
+    private List<Subscription> reassignSubscriptions(BosswaveClient added) {
+        List<Subscription> moved = new ArrayList<>();
+        for (Subscription subscription : subscriptions) {
+            String uri = subscription.request.getUri();
+            if (UriMatcher.hasWildcard(routingPrefix(uri))) {
+                if (added != null) {
+                    subscription.pending = added;
+                    subscription.owners.add(added);
+                    subscription.subscribedOn.add(added);
+                    moved.add(subscription);
+                }
+                continue;
+            }
+            BosswaveClient owner = routerFor(uri);
+            if (!subscription.owners.contains(owner)) {
+                // Messages still arriving from the previous owner are ignored from now on
+                subscription.owners.clear();
+                subscription.owners.add(owner);
+                // A router that owned the prefix before still holds the earlier subscription
+                if (subscription.subscribedOn.add(owner)) {
+                    subscription.pending = owner;
+                    moved.add(subscription);
+                }
+            }
+        }
+        return moved;
+    }
+
+    private static void resubscribe(List<Subscription> moved) throws IOException {
+        for (Subscription subscription : moved) {
+            subscription.subscribeOn(subscription.pending, subscription.rh);
+        }
+    }
+
+    // 64-bit FNV-1a followed by a final avalanche step so that similar names spread out
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private static class Subscription {
+        private final SubscribeRequest request;
+        private final ResponseHandler rh;
+        private final MessageHandler mh;
+        // Routers whose messages are currently delivered, read from listener threads
+        private final Set<BosswaveClient> owners;
+        // Routers this subscription has been sent to; there is no way to cancel it on a router
+        private final Set<BosswaveClient> subscribedOn;
+        private BosswaveClient pending;
+
+        private Subscription(SubscribeRequest request, ResponseHandler rh, MessageHandler mh) {
+            this.request = request;
+            this.rh = rh;
+            this.mh = mh;
+            owners = Collections.newSetFromMap(new ConcurrentHashMap<BosswaveClient, Boolean>());
+            subscribedOn = new HashSet<>();
+        }
+
+        private void subscribeOn(final BosswaveClient client, ResponseHandler rh) throws IOException {
+            client.subscribe(request, rh, mh == null ? null : new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    if (owners.contains(client)) {
+                        mh.onResultReceived(message);
+                    }
+                }
+            });
+        }
+    }
+
+    // Combines the responses and results of one request sent to several routers
+    private static class FanIn {
+        private final ResponseHandler rh;
+        private final MessageHandler mh;
+        private final ListResultHandler lrh;
+        private final AtomicInteger awaitingResponse;
+        private final AtomicBoolean reported;
+        // Routers that have neither finished nor rejected the request
+        private final AtomicInteger remaining;
+
+        private FanIn(ResponseHandler rh, MessageHandler mh, ListResultHandler lrh, int count) {
+            this.rh = rh;
+            this.mh = mh;
+            this.lrh = lrh;
+            awaitingResponse = new AtomicInteger(count);
+            reported = new AtomicBoolean(false);
+            remaining = new AtomicInteger(count);
+        }
+
+        private Shard newShard() {
+            return new Shard(this);
+        }
+
+        private void onResponse(Response result) {
+            boolean okay = result.getStatus().equals("okay");
+            boolean last = awaitingResponse.decrementAndGet() == 0;
+            if ((!okay || last) && reported.compareAndSet(false, true) && rh != null) {
+                rh.onResponseReceived(result);
+            }
+        }
+
+        private void onShardFinished() {
+            if (remaining.decrementAndGet() == 0) {
+                if (mh instanceof QueryResultHandler) {
+                    ((QueryResultHandler) mh).finish();
+                }
+                if (lrh != null) {
+                    lrh.finish();
+                }
+            }
+        }
+    }
+
+    // One router's part of a fanned-out request; a rejected request counts as finished
+    private static class Shard implements ResponseHandler, QueryResultHandler, ListResultHandler {
+        private final FanIn fanIn;
+        private final AtomicBoolean finished;
+
+        private Shard(FanIn fanIn) {
+            this.fanIn = fanIn;
+            finished = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            fanIn.onResponse(result);
+            if (!result.getStatus().equals("okay")) {
+                finish();
+            }
+        }
+
+        @Override
+        public void onResultReceived(Message message) {
+            if (fanIn.mh != null) {
+                fanIn.mh.onResultReceived(message);
+            }
+        }
+
+        @Override
+        public void onResult(String result) {
+            if (fanIn.lrh != null) {
+                fanIn.lrh.onResult(result);
+            }
+        }
+
+        @Override
+        public void finish() {
+            if (finished.compareAndSet(false, true)) {
+                fanIn.onShardFinished();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * An access chain returned by the router in response to a BUILD_CHAIN request.
+ */
+public class SimpleChain {
+    private final String hash;
+    private final String permissions;
+    private final String uri;
+    private final String to;
+    private final byte[] content;
+
+    public SimpleChain(String hash, String permissions, String uri, String to, byte[] content) {
+        this.hash = hash;
+        this.permissions = permissions;
+        this.uri = uri;
+        this.to = to;
+        this.content = content;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getPermissions() {
+        return permissions;
+    }
+
+    // The URI pattern that the chain grants access to
+    public String getUri() {
+        return uri;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public byte[] getContent() {
+        return (content == null ? null : content.clone());
+    }
+}
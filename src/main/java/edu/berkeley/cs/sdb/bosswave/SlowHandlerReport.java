@@ -0,0 +1,68 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+// Describes a handler callback that exceeded its watchdog's budget
+public class SlowHandlerReport {
+    private final Object handler;
+    private final Command command;
+    private final int seqNo;
+    private final long elapsedNanos;
+    private final StackTraceElement[] stackTrace;
+    private final int offenseCount;
+    private final boolean isolated;
+
+    SlowHandlerReport(Object handler, Command command, int seqNo, long elapsedNanos,
+                      StackTraceElement[] stackTrace, int offenseCount, boolean isolated) {
+        this.handler = handler;
+        this.command = command;
+        this.seqNo = seqNo;
+        this.elapsedNanos = elapsedNanos;
+        this.stackTrace = stackTrace;
+        this.offenseCount = offenseCount;
+        this.isolated = isolated;
+    }
+
+    public Object getHandler() {
+        return handler;
+    }
+
+    // The command of the frame being handled
+    public Command getCommand() {
+        return command;
+    }
+
+    public int getSeqNo() {
+        return seqNo;
+    }
+
+    // How long the callback had been running when it was sampled; it may still be running
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // The listener thread's stack at the time of the sample
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+
+    // The number of times this handler has now exceeded the budget
+    public int getOffenseCount() {
+        return offenseCount;
+    }
+
+    // True if this report caused the handler to be isolated
+    public boolean isIsolated() {
+        return isolated;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Handler %s for %s %d running for %d ms (offense %d%s)",
+                handler.getClass().getName(), command, seqNo, elapsedNanos / 1000000, offenseCount,
+                isolated ? ", now isolated" : ""));
+        for (StackTraceElement element : stackTrace) {
+            sb.append("\n\tat ").append(element);
+        }
+        return sb.toString();
+    }
+}
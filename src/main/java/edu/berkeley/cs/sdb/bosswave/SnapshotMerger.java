@@ -0,0 +1,87 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins the results of a QUERY with a SUBSCRIBE on the same URI into a single stream. Live
+ * messages are held back until the query finishes, then released in arrival order minus any
+ * message that the query already delivered.
+ */
+class SnapshotMerger implements QueryResultHandler {
+    private final MessageHandler handler;
+    private final Object lock;
+    private final MessageHandler liveHandler;
+
+    private boolean snapshotDone;
+    private List<Message> liveBuffer;
+    private Map<Message, Integer> snapshot;
+
+    SnapshotMerger(MessageHandler handler) {
+        this.handler = handler;
+        lock = new Object();
+        liveHandler = new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                onLiveMessage(message);
+            }
+        };
+        snapshotDone = false;
+        liveBuffer = new ArrayList<>();
+        snapshot = new HashMap<>();
+    }
+
+    // The handler to install for the subscription half of the merge
+    MessageHandler getLiveHandler() {
+        return liveHandler;
+    }
+
+    @Override
+    public void onResultReceived(Message message) {
+        synchronized (lock) {
+            if (snapshotDone) {
+                return;
+            }
+            Integer count = snapshot.get(message);
+            snapshot.put(message, count == null ? 1 : count + 1);
+            handler.onResultReceived(message);
+        }
+    }
+
+    @Override
+    public void finish() {
+        synchronized (lock) {
+            if (snapshotDone) {
+                return;
+            }
+            snapshotDone = true;
+            for (Message message : liveBuffer) {
+                Integer count = snapshot.get(message);
+                if (count != null) {
+                    // Already delivered as part of the snapshot
+                    if (count == 1) {
+                        snapshot.remove(message);
+                    } else {
+                        snapshot.put(message, count - 1);
+                    }
+                } else {
+                    handler.onResultReceived(message);
+                }
+            }
+            liveBuffer = null;
+            snapshot = null;
+        }
+    }
+
+    private void onLiveMessage(Message message) {
+        synchronized (lock) {
+            if (!snapshotDone) {
+                liveBuffer.add(message);
+                return;
+            }
+        }
+        handler.onResultReceived(message);
+    }
+}
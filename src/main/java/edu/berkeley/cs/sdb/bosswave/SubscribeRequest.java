@@ -3,7 +3,9 @@ package edu.berkeley.cs.sdb.bosswave;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class SubscribeRequest {
     private final String uri;
@@ -15,11 +17,19 @@ public class SubscribeRequest {
     private final boolean autoChain;
     private final List<RoutingObject> routingObjects;
     private final boolean leavePacked;
+    private final OverloadPolicy overloadPolicy;
+    private final Long conflationInterval;
+    private final Integer deduplicationWindowSize;
+    private final long deduplicationWindowMillis;
+    private final Set<PayloadObject.Type> acceptedPayloadTypes;
+    private final Set<Integer> acceptedRoutingObjects;
 
     // Instantiate this class with SubscribeRequest.Builder
     private SubscribeRequest(String uri, Date expiry, Long expiryDelta, String primaryAccessChain, boolean doVerify,
                              ChainElaborationLevel cel, List<RoutingObject> ros, boolean autoChain,
-                             boolean leavePacked) {
+                             boolean leavePacked, OverloadPolicy overloadPolicy, Long conflationInterval,
+                             Integer dedupWindowSize, long dedupWindowMillis,
+                             Set<PayloadObject.Type> payloadTypes, Set<Integer> routingObjectNumbers) {
         this.uri = uri;
         this.expiry = (expiry == null ? null : expiry.getTime());
         this.expiryDelta = expiryDelta;
@@ -28,6 +38,14 @@ public class SubscribeRequest {
         elabLevel = cel;
         this.autoChain = autoChain;
         this.leavePacked = leavePacked;
+        this.overloadPolicy = overloadPolicy;
+        this.conflationInterval = conflationInterval;
+        deduplicationWindowSize = dedupWindowSize;
+        deduplicationWindowMillis = dedupWindowMillis;
+        acceptedPayloadTypes = (payloadTypes == null ? null :
+                Collections.unmodifiableSet(new LinkedHashSet<>(payloadTypes)));
+        acceptedRoutingObjects = (routingObjectNumbers == null ? null :
+                Collections.unmodifiableSet(new LinkedHashSet<>(routingObjectNumbers)));
         routingObjects = Collections.unmodifiableList(ros);
     }
 
@@ -71,6 +89,34 @@ public class SubscribeRequest {
         return leavePacked;
     }
 
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    // Null unless messages are conflated
+    public Long getConflationInterval() {
+        return conflationInterval;
+    }
+
+    // Null unless duplicate messages are discarded
+    public Integer getDeduplicationWindowSize() {
+        return deduplicationWindowSize;
+    }
+
+    public long getDeduplicationWindowMillis() {
+        return deduplicationWindowMillis;
+    }
+
+    // Null if payload objects of every type are accepted
+    public Set<PayloadObject.Type> getAcceptedPayloadTypes() {
+        return acceptedPayloadTypes;
+    }
+
+    // Null if routing objects of every number are accepted
+    public Set<Integer> getAcceptedRoutingObjects() {
+        return acceptedRoutingObjects;
+    }
+
     public static class Builder {
         private String uri;
         private Date expiry;
@@ -81,6 +127,12 @@ public class SubscribeRequest {
         private boolean autoChain;
         private final List<RoutingObject> routingObjects;
         private boolean leavePacked;
+        private OverloadPolicy overloadPolicy;
+        private Long conflationInterval;
+        private Integer deduplicationWindowSize;
+        private long deduplicationWindowMillis;
+        private Set<PayloadObject.Type> acceptedPayloadTypes;
+        private Set<Integer> acceptedRoutingObjects;
 
         public Builder(String uri) {
             this.uri = uri;
@@ -89,6 +141,30 @@ public class SubscribeRequest {
             autoChain = false;
             routingObjects = new ArrayList<>();
             leavePacked = false;
+            overloadPolicy = OverloadPolicy.BLOCK;
+        }
+
+        // Starts from a copy of an existing request
+        public Builder(SubscribeRequest request) {
+            uri = request.uri;
+            expiry = request.getExpiry();
+            expiryDelta = request.expiryDelta;
+            primaryAccessChain = request.primaryAccessChain;
+            doVerify = request.doVerify;
+            elabLevel = request.elabLevel;
+            autoChain = request.autoChain;
+            routingObjects = new ArrayList<>(request.routingObjects);
+            leavePacked = request.leavePacked;
+            overloadPolicy = request.overloadPolicy;
+            conflationInterval = request.conflationInterval;
+            deduplicationWindowSize = request.deduplicationWindowSize;
+            deduplicationWindowMillis = request.deduplicationWindowMillis;
+            if (request.acceptedPayloadTypes != null) {
+                acceptedPayloadTypes = new LinkedHashSet<>(request.acceptedPayloadTypes);
+            }
+            if (request.acceptedRoutingObjects != null) {
+                acceptedRoutingObjects = new LinkedHashSet<>(request.acceptedRoutingObjects);
+            }
         }
 
         public Builder setUri(String uri) {
@@ -136,9 +212,78 @@ public class SubscribeRequest {
             return this;
         }
 
+        // Only applies when the client has an inbound buffer
+        public Builder setOverloadPolicy(OverloadPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("Overload policy must not be null");
+            }
+            overloadPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Delivers only the latest message for each URI, at most once per interval, through a
+         * {@link ConflatingMessageHandler} running on a shared thread.
+         * @param intervalMillis The minimum time between deliveries, or zero to deliver whenever
+         *                       the handler is free
+         */
+        public Builder setConflationInterval(long intervalMillis) {
+            if (intervalMillis < 0) {
+                throw new IllegalArgumentException("Negative conflation interval");
+            }
+            conflationInterval = intervalMillis;
+            return this;
+        }
+
+        /**
+         * Discards messages identical to one delivered recently on this subscription, through a
+         * {@link DeduplicatingMessageHandler}. To also discard duplicates arriving on other
+         * subscriptions, subscribe with a shared DeduplicatingMessageHandler instead.
+         * @param windowSize The number of recent messages remembered
+         * @param windowMillis How long a message is remembered, or zero for no time limit
+         */
+        public Builder setDeduplicationWindow(int windowSize, long windowMillis) {
+            if (windowSize <= 0) {
+                throw new IllegalArgumentException("Window size must be positive");
+            }
+            if (windowMillis < 0) {
+                throw new IllegalArgumentException("Negative deduplication window");
+            }
+            deduplicationWindowSize = windowSize;
+            deduplicationWindowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * Restricts the payload objects delivered with each message to the accepted types. A type
+         * given only as an octet or only as a number matches any type with that octet or number.
+         * The bodies of other payload objects are skipped as they are read, without being copied.
+         */
+        public Builder addAcceptedPayloadType(PayloadObject.Type type) {
+            if (acceptedPayloadTypes == null) {
+                acceptedPayloadTypes = new LinkedHashSet<>();
+            }
+            acceptedPayloadTypes.add(type);
+            return this;
+        }
+
+        // Restricts the routing objects delivered with each message, in the same way
+        public Builder addAcceptedRoutingObject(int number) {
+            if (number < 0 || number > 255) {
+                throw new IllegalArgumentException("Invalid routing object number: " + number);
+            }
+            if (acceptedRoutingObjects == null) {
+                acceptedRoutingObjects = new LinkedHashSet<>();
+            }
+            acceptedRoutingObjects.add(number);
+            return this;
+        }
+
         public SubscribeRequest build() {
             return new SubscribeRequest(uri, expiry, expiryDelta, primaryAccessChain, doVerify, elabLevel,
-                                        routingObjects, autoChain, leavePacked);
+                                        routingObjects, autoChain, leavePacked, overloadPolicy,
+                                        conflationInterval, deduplicationWindowSize, deduplicationWindowMillis,
+                                        acceptedPayloadTypes, acceptedRoutingObjects);
         }
 
         public void clearRoutingObjects() {
@@ -150,6 +295,12 @@ public class SubscribeRequest {
             elabLevel = ChainElaborationLevel.UNSPECIFIED;
             autoChain = false;
             leavePacked = false;
+            overloadPolicy = OverloadPolicy.BLOCK;
+            conflationInterval = null;
+            deduplicationWindowSize = null;
+            deduplicationWindowMillis = 0;
+            acceptedPayloadTypes = null;
+            acceptedRoutingObjects = null;
             routingObjects.clear();
         }
     }
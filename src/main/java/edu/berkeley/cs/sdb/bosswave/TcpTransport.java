@@ -0,0 +1,45 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+// Connects to a router over TCP
+public class TcpTransport implements Transport {
+    private final String hostName;
+    private final int port;
+    private Socket socket;
+
+    public TcpTransport(String hostName, int port) {
+        this.hostName = hostName;
+        this.port = port;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        socket = new Socket(hostName, port);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public String toString() {
+        return "tcp://" + hostName + ":" + port;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
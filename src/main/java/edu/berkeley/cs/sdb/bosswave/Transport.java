@@ -0,0 +1,19 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte stream connecting a client to its router. The client reads frames from the input
+ * stream on its listener thread while other threads write frames to the output stream, so an
+ * implementation must allow one reader and one writer concurrently.
+ */
+public interface Transport extends Closeable {
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+}
@@ -0,0 +1,172 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to a router agent on the same host through a Unix domain socket file, avoiding the
+ * loopback TCP stack. Unix domain socket channels were added in Java 16; this library targets
+ * older Java versions, so they are reached reflectively and {@link #isSupported()} reports
+ * whether the running JVM provides them.
+ */
+public class UnixDomainSocketTransport implements Transport {
+    private static final ProtocolFamily UNIX_FAMILY;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_CHANNEL;
+    private static final Method OPEN_SERVER_CHANNEL;
+    static {
+        ProtocolFamily family = null;
+        Method addressOf = null;
+        Method openChannel = null;
+        Method openServerChannel = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            family = null;
+        }
+        UNIX_FAMILY = family;
+        ADDRESS_OF = addressOf;
+        OPEN_CHANNEL = openChannel;
+        OPEN_SERVER_CHANNEL = openServerChannel;
+    }
+
+    private final String path;
+    private SocketChannel channel;
+
+    public UnixDomainSocketTransport(String path) {
+        this.path = path;
+    }
+
+    // Whether the running JVM supports Unix domain socket channels
+    public static boolean isSupported() {
+        return UNIX_FAMILY != null;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX_FAMILY);
+        channel.connect(address(path));
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ChannelInputStream(channel);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new ChannelOutputStream(channel);
+    }
+
+    @Override
+    public String toString() {
+        return "unix:" + path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // Opens a server channel listening on a socket file, e.g. for a local stand-in router
+    static ServerSocketChannel listen(String path) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, UNIX_FAMILY);
+        server.bind(address(path));
+        return server;
+    }
+
+    private static SocketAddress address(String path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, path);
+    }
+
+    private static Object invoke(Method method, Object arg) throws IOException {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer");
+        }
+        try {
+            return method.invoke(null, arg);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /*
+     * Channels.newInputStream and Channels.newOutputStream serialize reads and writes on a
+     * blocking channel through a shared lock, which would stall every publish while the listener
+     * thread waits for a frame. These adapters use the channel directly, which permits one
+     * concurrent reader and writer.
+     */
+    static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+        private final byte[] single = new byte[1];
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return (n <= 0 ? -1 : single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
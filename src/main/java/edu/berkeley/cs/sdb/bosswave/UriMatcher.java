@@ -0,0 +1,42 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Matches Bosswave URIs against patterns, where "+" matches exactly one path segment and "*"
+ * matches zero or more path segments.
+ */
+final class UriMatcher {
+    private UriMatcher() {
+    }
+
+    static boolean matches(String pattern, String uri) {
+        return matches(pattern.split("/"), 0, uri.split("/"), 0);
+    }
+
+    static boolean hasWildcard(String uri) {
+        return uri.indexOf('*') >= 0 || uri.indexOf('+') >= 0;
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] uri, int u) {
+        while (p < pattern.length) {
+            String segment = pattern[p];
+            if (segment.equals("*")) {
+                // Try every possible number of segments for the wildcard to consume
+                for (int skip = u; skip <= uri.length; skip++) {
+                    if (matches(pattern, p + 1, uri, skip)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (u >= uri.length) {
+                return false;
+            }
+            if (!segment.equals("+") && !segment.equals(uri[u])) {
+                return false;
+            }
+            p++;
+            u++;
+        }
+        return u == uri.length;
+    }
+}
@@ -0,0 +1,175 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Records the exact bytes of every frame a client sends and receives, with a timestamp and
+ * direction, for offline replay. Records are appended to memory-mapped segment files named
+ * &lt;base&gt;.0, &lt;base&gt;.1, and so on, so recording a frame is a copy into the page cache.
+ * A new segment is started whenever the current one is full.
+ *
+ * Each segment starts with an 8 byte magic number and the capture's start time in epoch
+ * milliseconds. Each record is a direction byte, the nanoseconds since the capture started, the
+ * frame length, and the frame itself. A zero direction byte marks the end of a segment.
+ *
+ * A capture never interrupts the connection it records. If a segment cannot be written or
+ * created, for example because the disk is full, the capture closes itself, stops recording, and
+ * reports the error once to its failure listener.
+ * @see BosswaveClient#startCapture(WireCapture)
+ * @see WireCaptureReader
+ */
+public class WireCapture implements Closeable {
+    static final byte[] MAGIC = "BWCAP001".getBytes(StandardCharsets.UTF_8);
+    static final int SEGMENT_HEADER_LENGTH = MAGIC.length + 8;
+    static final int RECORD_HEADER_LENGTH = 1 + 8 + 4;
+    static final byte INBOUND = 1;
+    static final byte OUTBOUND = 2;
+
+    public interface FailureListener {
+        // Called once, on the thread whose frame could not be recorded
+        void onCaptureFailed(WireCapture capture, IOException e);
+    }
+
+    private final File base;
+    private final int segmentSize;
+    private final long startMillis;
+    private final long startNanos;
+
+    private int segmentIndex;
+    private RandomAccessFile file;
+    private MappedByteBuffer segment;
+    private boolean closed;
+    // The error that stopped the capture, if any
+    private IOException failure;
+    private volatile FailureListener failureListener;
+
+    /**
+     * @param base The path of the first segment, without its ".0" suffix
+     * @param segmentSize The size of each segment file in bytes. Frames larger than this get a
+     *                    segment of their own.
+     */
+    public WireCapture(File base, int segmentSize) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.base = base;
+        this.segmentSize = segmentSize;
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        segmentIndex = -1;
+        openSegment(segmentSize);
+    }
+
+    public WireCapture setFailureListener(FailureListener listener) {
+        failureListener = listener;
+        return this;
+    }
+
+    // The error that stopped recording, or null if the capture has not failed
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    static File segmentFile(File base, int index) {
+        return new File(base.getPath() + "." + index);
+    }
+
+    // Returns false once the capture is closed or has failed, so the client can stop copying frames
+    boolean recordInbound(byte[] frame, int offset, int length) {
+        return record(INBOUND, frame, offset, length);
+    }
+
+    boolean recordOutbound(byte[] frame) {
+        return record(OUTBOUND, frame, 0, frame.length);
+    }
+
+    private boolean record(byte direction, byte[] frame, int offset, int length) {
+        IOException error;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            try {
+                long timestamp = System.nanoTime() - startNanos;
+                int needed = RECORD_HEADER_LENGTH + length;
+                // Leave room for the end-of-segment marker
+                if (segment.remaining() < needed + 1) {
+                    finishSegment();
+                    openSegment(Math.max(segmentSize, SEGMENT_HEADER_LENGTH + needed + 1));
+                }
+                segment.put(direction);
+                segment.putLong(timestamp);
+                segment.putInt(length);
+                segment.put(frame, offset, length);
+                return true;
+            } catch (IOException e) {
+                error = e;
+                fail(e);
+            }
+        }
+        FailureListener listener = failureListener;
+        if (listener != null) {
+            listener.onCaptureFailed(this, error);
+        }
+        return false;
+    }
+
+    // Stops recording for good, keeping whatever segments were already finished
+    private void fail(IOException e) {
+        closed = true;
+        failure = e;
+        segment = null;
+        try {
+            file.close();
+        } catch (IOException closeError) {
+            // Already failing
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            finishSegment();
+        }
+    }
+
+    private void openSegment(int size) throws IOException {
+        segmentIndex++;
+        RandomAccessFile next = new RandomAccessFile(segmentFile(base, segmentIndex), "rw");
+        try {
+            next.setLength(0);
+            segment = next.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        file = next;
+        segment.put(MAGIC);
+        segment.putLong(startMillis);
+    }
+
+    // Marks the end of the current segment and trims the unused part of the file. Java cannot
+    // unmap a buffer, so the file is truncated while still mapped; the mapping is never touched
+    // again, and where the platform refuses (Windows), the segment keeps its full size. Readers
+    // stop at the end marker either way.
+    private void finishSegment() throws IOException {
+        segment.put((byte) 0);
+        int length = segment.position();
+        segment.force();
+        segment = null;
+        try {
+            file.getChannel().truncate(length);
+        } catch (IOException e) {
+            // Left untrimmed
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the frames of a {@link WireCapture} back in the order they were recorded, across all of
+ * its segments.
+ */
+public class WireCaptureReader implements Closeable {
+    private final File base;
+    private int segmentIndex;
+    private DataInputStream in;
+    private long startMillis;
+
+    public WireCaptureReader(File base) throws IOException {
+        this.base = base;
+        segmentIndex = -1;
+        if (!openNextSegment()) {
+            throw new IOException("No capture segments found for " + base);
+        }
+    }
+
+    // The wall-clock time at which the capture started, in epoch milliseconds
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    // Returns the next frame, or null once every segment has been read
+    public CapturedFrame next() throws IOException {
+        while (in != null) {
+            byte direction;
+            try {
+                direction = in.readByte();
+            } catch (EOFException e) {
+                // A segment that was not closed cleanly ends without a marker
+                direction = 0;
+            }
+            if (direction == 0) {
+                in.close();
+                in = null;
+                openNextSegment();
+                continue;
+            }
+            if (direction != WireCapture.INBOUND && direction != WireCapture.OUTBOUND) {
+                throw new IOException("Corrupt capture record in " + WireCapture.segmentFile(base, segmentIndex));
+            }
+            long timestamp = in.readLong();
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            return new CapturedFrame(direction == WireCapture.INBOUND, timestamp, frame);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    private boolean openNextSegment() throws IOException {
+        File file = WireCapture.segmentFile(base, segmentIndex + 1);
+        if (!file.exists()) {
+            return false;
+        }
+        segmentIndex++;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        byte[] magic = new byte[WireCapture.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, WireCapture.MAGIC)) {
+            in.close();
+            throw new IOException("Not a capture segment: " + file);
+        }
+        startMillis = in.readLong();
+        return true;
+    }
+}
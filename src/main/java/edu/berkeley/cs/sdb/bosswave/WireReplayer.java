@@ -0,0 +1,338 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a {@link WireCapture} back, either to a router or into a client.
+ *
+ * Replaying to a router resends the client's side of the capture, so a production session can be
+ * reproduced against a test router. Replaying into a client plays the router's side of the
+ * capture through a {@link Transport}, so the client's own read and dispatch path can be profiled
+ * or regression-tested. Requests the replayed client sends are matched in order against captured
+ * requests with the same command and URI, and the captured results for each are delivered to the
+ * replayed client under its own sequence numbers. A captured frame answering a request is held
+ * until the replayed client sends the matching request, or until MATCH_TIMEOUT_MILLIS after the
+ * frame was due, after which it is delivered unchanged and the client ignores it.
+ */
+public class WireReplayer {
+    public static final long MATCH_TIMEOUT_MILLIS = 1000;
+
+    // Offset and width of the sequence number in a frame header, "cmd 0000000000 %010d\n"
+    private static final int SEQ_NO_OFFSET = 16;
+    private static final int SEQ_NO_DIGITS = 10;
+    private static final byte[] HELLO = "helo 0000000000 0000000000\nend\n".getBytes(StandardCharsets.UTF_8);
+
+    private final File base;
+    private final double speed;
+
+    /**
+     * @param base The path of the capture's first segment, without its ".0" suffix
+     * @param speed How many times faster than recorded to replay, or zero to replay as fast as possible
+     */
+    public WireReplayer(File base, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Negative replay speed");
+        }
+        this.base = base;
+        this.speed = speed;
+    }
+
+    /**
+     * Sends every frame the client sent during the capture to a router, with the captured timing.
+     * Whatever the router sends back is discarded.
+     * @return The number of frames sent
+     */
+    public int replayToRouter(String hostName, int port) throws IOException, InterruptedException {
+        int sent = 0;
+        try (Socket socket = new Socket(hostName, port);
+             WireCaptureReader reader = new WireCaptureReader(base)) {
+            final InputStream in = socket.getInputStream();
+            Thread drain = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] discard = new byte[8192];
+                    try {
+                        while (in.read(discard) >= 0) {
+                            // Responses are not checked
+                        }
+                    } catch (IOException e) {
+                        // The socket was closed
+                    }
+                }
+            }, "bosswave-replay-drain");
+            drain.setDaemon(true);
+            drain.start();
+
+            OutputStream out = socket.getOutputStream();
+            Pacer pacer = new Pacer();
+            CapturedFrame frame;
+            while ((frame = reader.next()) != null) {
+                if (!frame.isInbound()) {
+                    pacer.await(frame.getTimestampNanos());
+                    out.write(frame.getBytes());
+                    out.flush();
+                    sent++;
+                }
+            }
+        }
+        return sent;
+    }
+
+    // A transport that plays the router's side of the capture into the client that connects through it
+    public Transport asTransport() throws IOException {
+        return new ReplayTransport();
+    }
+
+    private static int readSeqNo(byte[] frame) {
+        int seqNo = 0;
+        for (int i = SEQ_NO_OFFSET; i < SEQ_NO_OFFSET + SEQ_NO_DIGITS; i++) {
+            seqNo = seqNo * 10 + (frame[i] - '0');
+        }
+        return seqNo;
+    }
+
+    private static byte[] withSeqNo(byte[] frame, int seqNo) {
+        byte[] copy = Arrays.copyOf(frame, frame.length);
+        for (int i = SEQ_NO_OFFSET + SEQ_NO_DIGITS - 1; i >= SEQ_NO_OFFSET; i--) {
+            copy[i] = (byte) ('0' + seqNo % 10);
+            seqNo /= 10;
+        }
+        return copy;
+    }
+
+    // Captured and replayed requests are paired by command and URI
+    private static String requestKey(Frame frame) {
+        byte[] uri = frame.getFirstValue("uri");
+        return frame.getCommand().getCode() + " " + (uri == null ? "" : new String(uri, StandardCharsets.UTF_8));
+    }
+
+    // Sleeps until a captured timestamp, scaled by the replay speed, is due
+    private class Pacer {
+        private final long startNanos = System.nanoTime();
+
+        // Returns the time, comparable with System.nanoTime, at which the frame was due
+        private long await(long timestampNanos) throws InterruptedException {
+            if (speed == 0) {
+                return startNanos;
+            }
+            long due = startNanos + (long) (timestampNanos / speed);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            return due;
+        }
+    }
+
+    private class ReplayTransport implements Transport, Runnable {
+        private final BlockingQueue<byte[]> inbound;
+        // Sequence numbers of captured requests not yet matched, by request key
+        private final Map<String, Deque<Integer>> capturedRequests;
+        private final Set<Integer> requestSeqNos;
+        // Captured sequence number to the sequence number the replayed client used, guarded by itself
+        private final Map<Integer, Integer> seqNos;
+        private final ByteArrayOutputStream written;
+        private final Thread feeder;
+        private volatile boolean closed;
+
+        private ReplayTransport() throws IOException {
+            inbound = new LinkedBlockingQueue<>();
+            capturedRequests = new HashMap<>();
+            requestSeqNos = new HashSet<>();
+            seqNos = new HashMap<>();
+            written = new ByteArrayOutputStream();
+            feeder = new Thread(this, "bosswave-replay-feeder");
+            feeder.setDaemon(true);
+
+            try (WireCaptureReader reader = new WireCaptureReader(base)) {
+                CapturedFrame captured;
+                while ((captured = reader.next()) != null) {
+                    if (!captured.isInbound()) {
+                        Frame frame = Frame.readFromStream(new ByteArrayInputStream(captured.getBytes()));
+                        String key = requestKey(frame);
+                        Deque<Integer> pending = capturedRequests.get(key);
+                        if (pending == null) {
+                            pending = new ArrayDeque<>();
+                            capturedRequests.put(key, pending);
+                        }
+                        pending.add(frame.getSeqNo());
+                        requestSeqNos.add(frame.getSeqNo());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void connect() {
+            inbound.add(HELLO);
+            feeder.start();
+        }
+
+        @Override
+        public void run() {
+            try (WireCaptureReader reader = new WireCaptureReader(base)) {
+                Pacer pacer = new Pacer();
+                CapturedFrame captured;
+                while (!closed && (captured = reader.next()) != null) {
+                    if (captured.isInbound()) {
+                        long due = pacer.await(captured.getTimestampNanos());
+                        byte[] frame = captured.getBytes();
+                        Integer seqNo = awaitMatch(readSeqNo(frame),
+                                due + TimeUnit.MILLISECONDS.toNanos(MATCH_TIMEOUT_MILLIS));
+                        inbound.add(seqNo == null ? frame : withSeqNo(frame, seqNo));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read capture " + base, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Waits for the replayed client to send the request a captured frame answers
+        private Integer awaitMatch(int capturedSeqNo, long deadline) throws InterruptedException {
+            if (!requestSeqNos.contains(capturedSeqNo)) {
+                return null;
+            }
+            synchronized (seqNos) {
+                Integer seqNo = seqNos.get(capturedSeqNo);
+                long remaining = deadline - System.nanoTime();
+                while (seqNo == null && remaining > 0 && !closed) {
+                    TimeUnit.NANOSECONDS.timedWait(seqNos, remaining);
+                    seqNo = seqNos.get(capturedSeqNo);
+                    remaining = deadline - System.nanoTime();
+                }
+                return seqNo;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private byte[] current = new byte[0];
+                private int position;
+
+                @Override
+                public int read() throws IOException {
+                    if (!fill()) {
+                        return -1;
+                    }
+                    return current[position++] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!fill()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, current.length - position);
+                    System.arraycopy(current, position, b, off, n);
+                    position += n;
+                    return n;
+                }
+
+                private boolean fill() throws IOException {
+                    while (position == current.length) {
+                        if (closed) {
+                            return false;
+                        }
+                        try {
+                            byte[] next = inbound.poll(100, TimeUnit.MILLISECONDS);
+                            if (next != null) {
+                                current = next;
+                                position = 0;
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting for a replayed frame");
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    synchronized (written) {
+                        written.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    synchronized (written) {
+                        written.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    matchRequests();
+                }
+            };
+        }
+
+        // Pairs each complete frame the client has written with the next matching captured request
+        private void matchRequests() throws IOException {
+            synchronized (written) {
+                byte[] bytes = written.toByteArray();
+                ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+                int consumed = 0;
+                while (in.available() > 0) {
+                    Frame frame;
+                    try {
+                        frame = Frame.readFromStream(in);
+                    } catch (IOException e) {
+                        // An incomplete frame; wait for the rest of it
+                        break;
+                    }
+                    consumed = bytes.length - in.available();
+                    Deque<Integer> pending = capturedRequests.get(requestKey(frame));
+                    if (pending != null && !pending.isEmpty()) {
+                        synchronized (seqNos) {
+                            seqNos.put(pending.poll(), frame.getSeqNo());
+                            seqNos.notifyAll();
+                        }
+                    }
+                }
+                written.reset();
+                written.write(bytes, consumed, bytes.length - consumed);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "replay:" + base;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            feeder.interrupt();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BosswaveBridgeTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+
+    private MockRouter field;
+    private MockRouter cloud;
+    private BosswaveBridge bridge;
+    private BosswaveClient publisher;
+    private BosswaveClient subscriber;
+
+    @Before
+    public void setUp() throws IOException {
+        field = new MockRouter();
+        field.start();
+        cloud = new MockRouter();
+        cloud.start();
+        bridge = new BosswaveBridge.Builder(factory(field), factory(cloud))
+                .addMapping("field/site", "cloud/mirror/site")
+                .setMaxInFlight(8)
+                .setBatchSize(4)
+                .setReconnectDelay(50)
+                .build();
+        publisher = connect(field);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        bridge.close();
+        publisher.close();
+        if (subscriber != null) {
+            subscriber.close();
+        }
+        field.close();
+        cloud.close();
+    }
+
+    @Test
+    public void testRelayWithRewrite() throws IOException, InterruptedException {
+        List<Message> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = subscribe(received, 50);
+        bridge.start();
+        awaitConnected();
+
+        for (int i = 0; i < 50; i++) {
+            publisher.publish(request("field/site/sensor" + (i % 3), i), null);
+        }
+        // Outside the mapped prefix
+        publisher.publish(request("field/other", 0), null);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 50; i++) {
+            Message message = received.get(i);
+            assertEquals("cloud/mirror/site/sensor" + (i % 3), message.getUri());
+            assertEquals(i, message.getPayloadObjects().get(0).getContent()[0]);
+        }
+        assertEquals(50, bridge.getRelayedCount());
+        assertEquals(50, bridge.getRelayLag().getCount());
+        assertEquals(0, bridge.getFailedCount());
+    }
+
+    @Test
+    public void testReconnectTarget() throws IOException, InterruptedException {
+        List<Message> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = subscribe(received, 1);
+        bridge.start();
+        awaitConnected();
+        publisher.publish(request("field/site/a", 1), null);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // Replace the target router with a new one on the same port
+        int port = cloud.getPort();
+        subscriber.close();
+        cloud.close();
+        cloud = new MockRouter(port);
+        cloud.start();
+        latch = subscribe(received, 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.getReconnectCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, bridge.getReconnectCount());
+
+        publisher.publish(request("field/site/a", 2), null);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, received.get(1).getPayloadObjects().get(0).getContent()[0]);
+    }
+
+    @Test
+    public void testFactoryRuntimeExceptionRetried() throws IOException, InterruptedException {
+        bridge.close();
+        final BosswaveBridge.ClientFactory target = factory(cloud);
+        final AtomicInteger attempts = new AtomicInteger();
+        bridge = new BosswaveBridge.Builder(factory(field), new BosswaveBridge.ClientFactory() {
+            @Override
+            public BosswaveClient connect() throws IOException {
+                // As a client does when the router's HELLO is malformed
+                if (attempts.incrementAndGet() == 1) {
+                    throw new RuntimeException("Invalid HELLO frame");
+                }
+                return target.connect();
+            }
+        }).addMapping("field/site", "cloud/mirror/site").setReconnectDelay(50).build();
+
+        List<Message> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = subscribe(received, 1);
+        bridge.start();
+        awaitConnected();
+        assertEquals(2, attempts.get());
+        publisher.publish(request("field/site/a", 1), null);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedSubscriptionRetried() throws IOException, InterruptedException {
+        field.deny("field/site");
+        List<Message> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = subscribe(received, 1);
+        bridge.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.getRejectedSubscriptionCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(bridge.getRejectedSubscriptionCount() >= 2);
+        assertFalse(bridge.isConnected());
+
+        field.allow("field/site");
+        awaitConnected();
+        publisher.publish(request("field/site/a", 1), null);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private CountDownLatch subscribe(final List<Message> received, int count) throws IOException {
+        subscriber = connect(cloud);
+        final CountDownLatch latch = new CountDownLatch(count);
+        subscriber.subscribe(new SubscribeRequest.Builder("cloud/mirror/*").build(), null, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.add(message);
+                latch.countDown();
+            }
+        });
+        return latch;
+    }
+
+    // The bridge connects and subscribes in the background
+    private void awaitConnected() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!bridge.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(bridge.isConnected());
+    }
+
+    private static PublishRequest request(String uri, int index) {
+        return new PublishRequest.Builder(uri).addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) index})).build();
+    }
+
+    private static BosswaveClient connect(MockRouter router) throws IOException {
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        return client;
+    }
+
+    private BosswaveBridge.ClientFactory factory(final MockRouter router) {
+        final int port = router.getPort();
+        return new BosswaveBridge.ClientFactory() {
+            @Override
+            public BosswaveClient connect() throws IOException {
+                BosswaveClient client = new BosswaveClient("localhost", port);
+                client.connect();
+                return client;
+            }
+        };
+    }
+}
@@ -0,0 +1,206 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BosswaveClientPoolTest {
+    private static final PayloadObject.Type TEXT = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+
+    private MockRouter router;
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MockRouter();
+        router.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        router.close();
+    }
+
+    @Test
+    public void testUriHashSpreadsRequests() throws IOException {
+        try (BosswaveClientPool pool = new BosswaveClientPool("localhost", router.getPort(), 4,
+                                                               BosswaveClientPool.Strategy.URI_HASH)) {
+            pool.connect();
+            Set<BosswaveClient> used = new HashSet<>();
+            for (int i = 0; i < 64; i++) {
+                String uri = "a/" + i;
+                assertSame(pool.clientFor(uri), pool.clientFor(uri));
+                used.add(pool.clientFor(uri));
+            }
+            assertEquals(4, used.size());
+        }
+    }
+
+    @Test
+    public void testHandlersRunOnRequestConnection() throws IOException, InterruptedException {
+        BosswaveClientPool pool = new BosswaveClientPool("localhost", router.getPort(), 2,
+                                                         BosswaveClientPool.Strategy.URI_HASH);
+        pool.connect();
+        try {
+            File keyFile = File.createTempFile("entity", ".key");
+            keyFile.deleteOnExit();
+            Files.write(keyFile.toPath(), new byte[]{1, 2, 3, 4});
+            final List<Response> entityResponses = new CopyOnWriteArrayList<>();
+            final CountDownLatch entitySet = new CountDownLatch(1);
+            pool.setEntityFile(keyFile, new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    entityResponses.add(result);
+                    entitySet.countDown();
+                }
+            });
+            assertTrue(entitySet.await(5, TimeUnit.SECONDS));
+
+            // Two URIs carried by different connections
+            String first = "a/0";
+            String second = null;
+            for (int i = 1; second == null; i++) {
+                if (pool.clientFor("a/" + i) != pool.clientFor(first)) {
+                    second = "a/" + i;
+                }
+            }
+
+            final List<Thread> firstThreads = new CopyOnWriteArrayList<>();
+            final List<Thread> secondThreads = new CopyOnWriteArrayList<>();
+            final CountDownLatch subscribed = new CountDownLatch(2);
+            final CountDownLatch received = new CountDownLatch(2);
+            ResponseHandler rh = new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    subscribed.countDown();
+                }
+            };
+            pool.subscribe(new SubscribeRequest.Builder(first).build(), rh, recordingHandler(firstThreads, received));
+            pool.subscribe(new SubscribeRequest.Builder(second).build(), rh, recordingHandler(secondThreads, received));
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+            pool.publish(new PublishRequest.Builder(first).setPersist(true)
+                    .addPayloadObject(new PayloadObject(TEXT, new byte[]{1})).build(), null);
+            pool.publish(new PublishRequest.Builder(second)
+                    .addPayloadObject(new PayloadObject(TEXT, new byte[]{2})).build(), null);
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertNotSame(firstThreads.get(0), secondThreads.get(0));
+
+            // A query for the first URI is answered on the same connection as its subscription
+            final CountDownLatch queried = new CountDownLatch(1);
+            pool.query(new QueryRequest.Builder(first).build(), null, recordingHandler(firstThreads, queried));
+            assertTrue(queried.await(5, TimeUnit.SECONDS));
+            assertSame(firstThreads.get(0), firstThreads.get(1));
+            assertEquals(1, entityResponses.size());
+            assertEquals("okay", entityResponses.get(0).getStatus());
+        } finally {
+            pool.close();
+        }
+        assertFalse(pool.clientFor("a/0").isConnected());
+        assertFalse(pool.clientFor("a/1").isConnected());
+    }
+
+    @Test
+    public void testTransportFactory() throws IOException, InterruptedException {
+        final AtomicInteger created = new AtomicInteger();
+        BosswaveClientPool pool = new BosswaveClientPool(new BosswaveClientPool.TransportFactory() {
+            @Override
+            public Transport createTransport() {
+                created.incrementAndGet();
+                return new TcpTransport("localhost", router.getPort());
+            }
+        }, 3, BosswaveClientPool.Strategy.LEAST_OUTSTANDING);
+        assertEquals(3, created.get());
+        assertEquals(3, pool.size());
+
+        pool.connect();
+        try {
+            final CountDownLatch published = new CountDownLatch(1);
+            pool.publish(new PublishRequest.Builder("a/b").build(), new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    published.countDown();
+                }
+            });
+            assertTrue(published.await(5, TimeUnit.SECONDS));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testFailedConnectClosesConnectedClients() throws IOException {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        BosswaveClientPool pool = new BosswaveClientPool(new BosswaveClientPool.TransportFactory() {
+            @Override
+            public Transport createTransport() {
+                // The last connection cannot be made
+                final Transport tcp = created.incrementAndGet() < 3
+                        ? new TcpTransport("localhost", router.getPort()) : null;
+                return new Transport() {
+                    @Override
+                    public void connect() throws IOException {
+                        if (tcp == null) {
+                            throw new IOException("Refused");
+                        }
+                        tcp.connect();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return tcp.getInputStream();
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return tcp.getOutputStream();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        closed.incrementAndGet();
+                        tcp.close();
+                    }
+                };
+            }
+        }, 3, BosswaveClientPool.Strategy.URI_HASH);
+
+        try {
+            pool.connect();
+            fail("Expected the third connection to fail");
+        } catch (IOException e) {
+            assertEquals("Refused", e.getMessage());
+        }
+        assertEquals(2, closed.get());
+    }
+
+    private static MessageHandler recordingHandler(final List<Thread> threads, final CountDownLatch latch) {
+        return new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+        };
+    }
+}
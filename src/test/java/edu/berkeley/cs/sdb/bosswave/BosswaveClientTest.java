@@ -7,16 +7,19 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class BosswaveClientTest {
 
-    private static final int BW_PORT = 28589;
     private static final Set<String> expectedMessages = new HashSet<>();
     static {
         expectedMessages.add("Hello, World!");
@@ -26,15 +29,23 @@ public class BosswaveClientTest {
     }
 
     private final Semaphore sem = new Semaphore(0);
-    private final BosswaveClient client = new BosswaveClient("localhost", BW_PORT);
+    private MockRouter router;
+    private BosswaveClient client;
     private final TestResponseHandler responseHandler = new TestResponseHandler();
     private final TestMessageHandler messageHandler = new TestMessageHandler();
 
     @Before
     public void setUp() throws IOException {
-        // We assume a local Bosswave router is running
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
         client.connect();
-        client.setEntityFile(new File("/home/jack/bosswave/jack.key"), responseHandler);
+
+        // The mock router accepts any entity
+        File keyFile = File.createTempFile("entity", ".key");
+        keyFile.deleteOnExit();
+        Files.write(keyFile.toPath(), new byte[]{1, 2, 3, 4});
+        client.setEntityFile(keyFile, responseHandler);
 
         SubscribeRequest.Builder builder = new SubscribeRequest.Builder("castle.bw2.io/foo/bar").setExpiryDelta(3600000);
         builder.setPrimaryAccessChain("lGhzBEz_uyAz2sOjJ9kmfyJEl1MakBZP3mKC-DNCNYE=");
@@ -54,6 +65,7 @@ public class BosswaveClientTest {
     @After
     public void tearDown() throws IOException {
         client.close();
+        router.close();
     }
 
     @Test
@@ -77,6 +89,31 @@ public class BosswaveClientTest {
         sem.acquire(); // Wait until all published messages have been received
     }
 
+    @Test
+    public void testAcceptedPayloadTypes() throws IOException, InterruptedException {
+        sem.acquire();
+
+        final Semaphore received = new Semaphore(0);
+        final List<PayloadObject> payloads = new CopyOnWriteArrayList<>();
+        PayloadObject.Type json = new PayloadObject.Type(new byte[]{2, 0, 0, 0});
+        client.subscribe(new SubscribeRequest.Builder("castle.bw2.io/filtered").addAcceptedPayloadType(json).build(),
+                null, new MessageHandler() {
+                    @Override
+                    public void onResultReceived(Message message) {
+                        payloads.addAll(message.getPayloadObjects());
+                        received.release();
+                    }
+                });
+        PublishRequest request = new PublishRequest.Builder("castle.bw2.io/filtered")
+                .addPayloadObject(new PayloadObject(new PayloadObject.Type(new byte[]{1, 0, 0, 0}), new byte[1000]))
+                .addPayloadObject(new PayloadObject(json, "{}".getBytes(StandardCharsets.UTF_8)))
+                .build();
+        client.publish(request, responseHandler);
+        assertTrue(received.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(1, payloads.size());
+        assertEquals(new PayloadObject(json, "{}".getBytes(StandardCharsets.UTF_8)), payloads.get(0));
+    }
+
     private static class TestResponseHandler implements ResponseHandler {
         @Override
         public void onResponseReceived(Response result) {
@@ -0,0 +1,132 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChainResolverTest {
+    private static final PayloadObject.Type TEXT = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+
+    private MockRouter router;
+    private BosswaveClient client;
+    private ChainResolver resolver;
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        resolver = new ChainResolver(client, "entity", 16, 60000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+    }
+
+    @Test
+    public void testCoveringChainReused() throws IOException, InterruptedException {
+        router.addChain("chain-a", "a/*", "PC");
+        assertEquals("chain-a", resolveAndWait("a/b", "P"));
+
+        // The chain built for a/b covers a/c, so no BUILD_CHAIN is needed
+        final List<String> hashes = new CopyOnWriteArrayList<>();
+        resolver.resolve("a/c", "P", new ChainResolver.ChainCallback() {
+            @Override
+            public void onChainResolved(String hash) {
+                hashes.add(hash);
+            }
+        });
+        assertEquals(1, hashes.size());
+        assertEquals("chain-a", hashes.get(0));
+
+        assertNull(resolveAndWait("b/c", "P"));
+    }
+
+    @Test
+    public void testPublishFallsBackToAutoChain() throws IOException, InterruptedException {
+        final CountDownLatch received = new CountDownLatch(1);
+        client.subscribe(new SubscribeRequest.Builder("a/b").build(), null, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.countDown();
+            }
+        });
+        final List<Response> responses = new CopyOnWriteArrayList<>();
+        resolver.publish(new PublishRequest.Builder("a/b").addPayloadObject(new PayloadObject(TEXT, new byte[]{1})).build(),
+                new ResponseHandler() {
+                    @Override
+                    public void onResponseReceived(Response result) {
+                        responses.add(result);
+                    }
+                });
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals("okay", responses.get(0).getStatus());
+    }
+
+    @Test
+    public void testSendFailureReportedToResponseHandler() throws IOException, InterruptedException {
+        router.addChain("chain-a", "a/*", "PC");
+        assertEquals("chain-a", resolveAndWait("a/b", "P"));
+        client.close();
+
+        // The chain is cached, so the publish runs and fails on this thread
+        final List<Response> responses = new CopyOnWriteArrayList<>();
+        resolver.publish(new PublishRequest.Builder("a/b").build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                responses.add(result);
+            }
+        });
+        assertEquals(1, responses.size());
+        assertFalse(responses.get(0).getStatus().equals("okay"));
+        assertTrue(responses.get(0).getReason().contains("a/b"));
+    }
+
+    @Test
+    public void testBuildFailureClearsPendingBuild() throws IOException {
+        client.close();
+        ChainResolver.ChainCallback callback = new ChainResolver.ChainCallback() {
+            @Override
+            public void onChainResolved(String hash) {
+            }
+        };
+        // Each attempt fails rather than waiting behind the first build, which was never sent
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("a/b", "P", callback);
+                fail("Expected the build to fail");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private String resolveAndWait(String uri, String permissions) throws IOException, InterruptedException {
+        final CountDownLatch resolved = new CountDownLatch(1);
+        final String[] result = new String[1];
+        resolver.resolve(uri, permissions, new ChainResolver.ChainCallback() {
+            @Override
+            public void onChainResolved(String hash) {
+                result[0] = hash;
+                resolved.countDown();
+            }
+        });
+        assertTrue(resolved.await(5, TimeUnit.SECONDS));
+        return result[0];
+    }
+}
@@ -0,0 +1,73 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientMetricsTest {
+    private MockRouter router;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+    }
+
+    @Test
+    public void testCountsAndLatencies() throws IOException, InterruptedException {
+        ClientMetrics metrics = client.enableMetrics();
+        final CountDownLatch responses = new CountDownLatch(3);
+        ResponseHandler handler = new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                responses.countDown();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            client.publish(new PublishRequest.Builder("a/b").build(), handler);
+        }
+        assertTrue(responses.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, metrics.getFramesSent(Command.PUBLISH));
+        assertEquals(3, metrics.getFramesReceived(Command.RESPONSE));
+        assertEquals(3, metrics.getResponseLatencies(Command.PUBLISH).getCount());
+        assertEquals(0, metrics.getFailedResponses());
+        assertEquals(0, metrics.getOutstandingResponses());
+        assertTrue(metrics.getBytesSent() > 0);
+        assertTrue(metrics.getBytesReceived() > 0);
+    }
+
+    @Test
+    public void testMBean() throws JMException {
+        ClientMetrics metrics = client.enableMetrics();
+        ObjectName name = metrics.registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(0L, server.getAttribute(name, "FramesSent"));
+        assertEquals(0L, server.invoke(name, "getFramesSentFor", new Object[]{"QUERY"},
+                new String[]{String.class.getName()}));
+
+        metrics.unregisterMBean();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,130 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConflatingMessageHandlerTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+
+    @Test
+    public void testLatestPerUriWhenFree() throws InterruptedException {
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Message> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(3);
+        ConflatingMessageHandler handler = new ConflatingMessageHandler(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                delivered.add(message);
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        }, 0);
+
+        handler.onResultReceived(message("a", 0));
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 10; i++) {
+            handler.onResultReceived(message(i % 2 == 0 ? "a" : "b", i));
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, delivered.size());
+        assertEquals(0, index(delivered.get(0)));
+        // The pending URIs are delivered in the order they first arrived
+        assertEquals("b", delivered.get(1).getUri());
+        assertEquals(9, index(delivered.get(1)));
+        assertEquals("a", delivered.get(2).getUri());
+        assertEquals(10, index(delivered.get(2)));
+        assertEquals(8, handler.getCoalescedCount());
+    }
+
+    @Test
+    public void testAtMostOncePerInterval() throws InterruptedException {
+        final List<Long> times = new CopyOnWriteArrayList<>();
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        ConflatingMessageHandler handler = new ConflatingMessageHandler(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                times.add(System.nanoTime());
+                first.countDown();
+                done.countDown();
+            }
+        }, 200);
+
+        handler.onResultReceived(message("a", 0));
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 100; i++) {
+            handler.onResultReceived(message("a", i));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(times.get(1) - times.get(0) >= TimeUnit.MILLISECONDS.toNanos(190));
+        assertEquals(98, handler.getCoalescedCount());
+    }
+
+    @Test
+    public void testSubscribeWithConflationInterval() throws IOException, InterruptedException {
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            final List<Integer> received = new CopyOnWriteArrayList<>();
+            final CountDownLatch subscribed = new CountDownLatch(1);
+            client.subscribe(new SubscribeRequest.Builder("a").setConflationInterval(300).build(), new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    subscribed.countDown();
+                }
+            }, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    received.add(index(message));
+                }
+            });
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+            List<PublishRequest> requests = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                requests.add(new PublishRequest.Builder("a").addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) i})).build());
+            }
+            for (PublishRequest request : requests) {
+                client.publish(request, null);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((received.isEmpty() || received.get(received.size() - 1) != 49) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(49, (int) received.get(received.size() - 1));
+            assertEquals(50, received.size() + client.getCoalescedMessageCount());
+        } finally {
+            client.close();
+            router.close();
+        }
+    }
+
+    private static Message message(String uri, int index) {
+        List<PayloadObject> pos = new ArrayList<>();
+        pos.add(new PayloadObject(TYPE, new byte[]{(byte) index}));
+        return new Message("from", uri, new ArrayList<RoutingObject>(), pos);
+    }
+
+    private static int index(Message message) {
+        return message.getPayloadObjects().get(0).getContent()[0];
+    }
+}
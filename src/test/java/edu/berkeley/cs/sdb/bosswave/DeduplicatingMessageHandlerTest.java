@@ -0,0 +1,189 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeduplicatingMessageHandlerTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+
+    @Test
+    public void testDuplicatesDiscarded() {
+        final List<Message> delivered = new ArrayList<>();
+        DeduplicatingMessageHandler handler = new DeduplicatingMessageHandler(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                delivered.add(message);
+            }
+        }, 16, 0);
+
+        handler.onResultReceived(message("a", "from", 1));
+        handler.onResultReceived(message("a", "from", 1));
+        // Any difference in URI, sender or payload makes a distinct message
+        handler.onResultReceived(message("b", "from", 1));
+        handler.onResultReceived(message("a", "other", 1));
+        handler.onResultReceived(message("a", "from", 2));
+        handler.onResultReceived(message("b", "from", 1));
+
+        assertEquals(4, delivered.size());
+        assertEquals(2, handler.getDuplicateCount());
+    }
+
+    @Test
+    public void testCountWindow() {
+        final List<Message> delivered = new ArrayList<>();
+        DeduplicatingMessageHandler handler = new DeduplicatingMessageHandler(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                delivered.add(message);
+            }
+        }, 4, 0);
+
+        for (int i = 0; i < 8; i++) {
+            handler.onResultReceived(message("a", "from", i));
+        }
+        // Both generations are full, so the last eight are remembered
+        handler.onResultReceived(message("a", "from", 0));
+        assertEquals(8, delivered.size());
+
+        for (int i = 8; i < 12; i++) {
+            handler.onResultReceived(message("a", "from", i));
+        }
+        // The generation holding the first four has been reused
+        handler.onResultReceived(message("a", "from", 1));
+        assertEquals(13, delivered.size());
+        assertEquals(1, handler.getDuplicateCount());
+    }
+
+    @Test
+    public void testTimeWindow() throws InterruptedException {
+        final List<Message> delivered = new ArrayList<>();
+        DeduplicatingMessageHandler handler = new DeduplicatingMessageHandler(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                delivered.add(message);
+            }
+        }, 1000, 50);
+
+        handler.onResultReceived(message("a", "from", 0));
+        Thread.sleep(60);
+        handler.onResultReceived(message("a", "from", 1));
+        Thread.sleep(60);
+        handler.onResultReceived(message("a", "from", 2));
+        // Two generations have started since the first message
+        handler.onResultReceived(message("a", "from", 0));
+        handler.onResultReceived(message("a", "from", 2));
+        assertEquals(4, delivered.size());
+        assertEquals(1, handler.getDuplicateCount());
+    }
+
+    @Test
+    public void testRepeatAfterQuietWindow() throws InterruptedException {
+        final List<Message> delivered = new ArrayList<>();
+        DeduplicatingMessageHandler handler = new DeduplicatingMessageHandler(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                delivered.add(message);
+            }
+        }, 1000, 50);
+
+        handler.onResultReceived(message("a", "from", 0));
+        // No other traffic, so no generation has rotated since the first message
+        Thread.sleep(120);
+        handler.onResultReceived(message("a", "from", 0));
+        assertEquals(2, delivered.size());
+        assertEquals(0, handler.getDuplicateCount());
+    }
+
+    @Test
+    public void testOverlappingSubscriptions() throws IOException, InterruptedException {
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            final List<Integer> received = new CopyOnWriteArrayList<>();
+            final CountDownLatch subscribed = new CountDownLatch(2);
+            ResponseHandler rh = new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    subscribed.countDown();
+                }
+            };
+            DeduplicatingMessageHandler handler = new DeduplicatingMessageHandler(new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    received.add((int) message.getPayloadObjects().get(0).getContent()[0]);
+                }
+            }, 64, 0);
+            // Both subscriptions match every publish, and share one handler
+            client.subscribe(new SubscribeRequest.Builder("a/*").build(), rh, handler);
+            client.subscribe(new SubscribeRequest.Builder("a/+").build(), rh, handler);
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 5; i++) {
+                client.publish(new PublishRequest.Builder("a/b").addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) i})).build(), null);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.size() + handler.getDuplicateCount() < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, received.size());
+            assertEquals(5, handler.getDuplicateCount());
+        } finally {
+            client.close();
+            router.close();
+        }
+    }
+
+    @Test
+    public void testSubscribeWithDeduplicationWindow() throws IOException, InterruptedException {
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            final List<Integer> received = new CopyOnWriteArrayList<>();
+            final CountDownLatch subscribed = new CountDownLatch(1);
+            client.subscribe(new SubscribeRequest.Builder("a").setDeduplicationWindow(64, 0).build(), new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    subscribed.countDown();
+                }
+            }, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    received.add((int) message.getPayloadObjects().get(0).getContent()[0]);
+                }
+            });
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 6; i++) {
+                client.publish(new PublishRequest.Builder("a").addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) (i / 2)})).build(), null);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.size() + client.getDuplicateMessageCount() < 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, received.size());
+            assertEquals(3, client.getDuplicateMessageCount());
+        } finally {
+            client.close();
+            router.close();
+        }
+    }
+
+    private static Message message(String uri, String from, int index) {
+        List<PayloadObject> pos = new ArrayList<>();
+        pos.add(new PayloadObject(TYPE, new byte[]{(byte) index}));
+        return new Message(from, uri, new ArrayList<RoutingObject>(), pos);
+    }
+}
@@ -0,0 +1,64 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExpiryFormatTest {
+
+    @Test
+    public void testFormatExpiry() {
+        SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+        Date first = new Date(1460000000123L);
+        Date sameSecond = new Date(1460000000999L);
+        Date nextSecond = new Date(1460000001000L);
+
+        assertEquals(reference.format(first), decode(ExpiryFormat.formatExpiry(first)));
+        assertEquals(reference.format(sameSecond), decode(ExpiryFormat.formatExpiry(sameSecond)));
+        assertEquals(reference.format(nextSecond), decode(ExpiryFormat.formatExpiry(nextSecond)));
+    }
+
+    @Test
+    public void testFormatDelta() {
+        assertEquals("3600000ms", decode(ExpiryFormat.formatDelta(3600000)));
+        assertEquals("3600000ms", decode(ExpiryFormat.formatDelta(3600000)));
+        assertEquals("64ms", decode(ExpiryFormat.formatDelta(64))); // Shares a cache slot with 0
+        assertEquals("0ms", decode(ExpiryFormat.formatDelta(0)));
+    }
+
+    @Test
+    public void testConcurrentFormatting() throws InterruptedException {
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = 1460000000000L + t * 86400000L;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+                    for (int i = 0; i < 2000; i++) {
+                        Date date = new Date(base + i * 500L);
+                        if (!reference.format(date).equals(decode(ExpiryFormat.formatExpiry(date)))) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+    }
+
+    private static String decode(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class FlightEventsTest {
+
+    // The jdk.jfr API is used reflectively here too, since tests are also compiled for Java 7
+    @Test
+    public void testEventsRecorded() throws Exception {
+        Assume.assumeTrue(FlightEvents.FRAME_WRITE != null);
+
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        for (String name : new String[]{"FrameRead", "FrameWrite", "Dispatch", "Handler", "Connect"}) {
+            Object settings = recordingClass.getMethod("enable", String.class)
+                    .invoke(recording, "edu.berkeley.cs.sdb.bosswave." + name);
+            settings.getClass().getMethod("withoutThreshold").invoke(settings);
+        }
+        recordingClass.getMethod("start").invoke(recording);
+        assertTrue(FlightEvents.isRecording());
+
+        try (MockRouter router = new MockRouter()) {
+            router.start();
+            BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+            client.connect();
+            final CountDownLatch response = new CountDownLatch(2);
+            ResponseHandler handler = new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    response.countDown();
+                }
+            };
+            // The handler event is committed after the handler returns, so wait for a second
+            // response to be sure the first one's events are in the recording
+            client.publish(new PublishRequest.Builder("a/b").build(), handler);
+            client.publish(new PublishRequest.Builder("a/b").build(), handler);
+            assertTrue(response.await(5, TimeUnit.SECONDS));
+            client.close();
+        }
+
+        recordingClass.getMethod("stop").invoke(recording);
+        File dump = File.createTempFile("bosswave", ".jfr");
+        dump.deleteOnExit();
+        recordingClass.getMethod("dump", Path.class).invoke(recording, dump.toPath());
+        recordingClass.getMethod("close").invoke(recording);
+
+        Set<String> names = new HashSet<>();
+        List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                .getMethod("readAllEvents", Path.class).invoke(null, dump.toPath());
+        for (Object event : events) {
+            Object type = event.getClass().getMethod("getEventType").invoke(event);
+            names.add((String) type.getClass().getMethod("getName").invoke(type));
+        }
+        for (String name : new String[]{"FrameRead", "FrameWrite", "Dispatch", "Handler", "Connect"}) {
+            assertTrue(name + " not recorded", names.contains("edu.berkeley.cs.sdb.bosswave." + name));
+        }
+    }
+}
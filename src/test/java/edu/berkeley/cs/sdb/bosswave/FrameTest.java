@@ -2,13 +2,18 @@ package edu.berkeley.cs.sdb.bosswave;
 
 import org.junit.Test;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FrameTest {
 
@@ -176,4 +181,94 @@ public class FrameTest {
                 "end\n";
         assertEquals(expectedFrameStr, frameStr);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSkipToNextFrame() throws IOException {
+        String streamStr = "xxxx 0000000000 0000000001\n" +
+                "kv key 5\n" +
+                "value\n" +
+                "end\n" +
+                "garbage\n" +
+                "rslt 0000000000 0000000007\n" +
+                "end\n";
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(streamStr.getBytes(StandardCharsets.UTF_8)));
+        try {
+            Frame.readFromStream(in);
+            fail("Expected an invalid frame");
+        } catch (InvalidFrameException e) {
+            // The header has been read
+        }
+        assertEquals("kv key 5\nvalue\nend\ngarbage\n".length(), Frame.skipToNextFrame(in));
+        Frame frame = Frame.readFromStream(in);
+        assertEquals(Command.RESULT, frame.getCommand());
+        assertEquals(7, frame.getSeqNo());
+    }
+
+    @Test
+    public void testReadFilteredFrame() throws IOException {
+        String streamStr = "rslt 0000000000 0000000410\n" +
+                "kv uri 3\n" +
+                "a/b\n" +
+                "ro 1 3\n" +
+                "one\n" +
+                "ro 2 3\n" +
+                "two\n" +
+                "po 1.0.0.0: 3\n" +
+                "raw\n" +
+                "po 0.0.0.64:64 4\n" +
+                "json\n" +
+                "end\n" +
+                "rslt 0000000000 0000000411\n" +
+                "po 1.0.0.0: 3\n" +
+                "raw\n" +
+                "end\n";
+        SubscribeRequest request = new SubscribeRequest.Builder("a/b")
+                .addAcceptedPayloadType(new PayloadObject.Type(64))
+                .addAcceptedRoutingObject(2)
+                .build();
+        Map<Integer, ObjectFilter> filters = new HashMap<>();
+        filters.put(410, ObjectFilter.fromRequest(request, false));
+        ByteArrayInputStream in = new ByteArrayInputStream(streamStr.getBytes(StandardCharsets.UTF_8));
+
+        Frame frame = Frame.readFromStream(in, filters);
+        assertEquals(1, frame.getKVPairs().size());
+        assertEquals(1, frame.getRoutingObjects().size());
+        assertEquals(new RoutingObject(2, "two".getBytes(StandardCharsets.UTF_8)), frame.getRoutingObjects().get(0));
+        assertEquals(1, frame.getPayloadObjects().size());
+        assertEquals("json", new String(frame.getPayloadObjects().get(0).getContent(), StandardCharsets.UTF_8));
+
+        // Other sequence numbers are decoded in full
+        frame = Frame.readFromStream(in, filters);
+        assertEquals(1, frame.getPayloadObjects().size());
+    }
+
+    @Test
+    public void testReadRawFrame() throws IOException {
+        String frameStr = "rslt 0000000000 0000000410\n" +
+                "kv uri 3\n" +
+                "a/b\n" +
+                "ro 1 3\n" +
+                "one\n" +
+                "po 1.0.0.0: 3\n" +
+                "raw\n" +
+                "end\n";
+        Map<Integer, ObjectFilter> filters = new HashMap<>();
+        filters.put(410, ObjectFilter.fromRequest(new SubscribeRequest.Builder("a/b").build(), true));
+
+        Frame frame = Frame.readFromStream(new ByteArrayInputStream(frameStr.getBytes(StandardCharsets.UTF_8)), filters);
+        assertEquals(0, frame.getPayloadObjects().size());
+        assertEquals(frameStr.length(), frame.getEncodedLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeToStream(out);
+        assertEquals(frameStr, out.toString(StandardCharsets.UTF_8.name()));
+
+        // A raw object cut off before its trailing newline
+        String truncated = "rslt 0000000000 0000000410\npo 1.0.0.0: 3\nraw";
+        try {
+            Frame.readFromStream(new ByteArrayInputStream(truncated.getBytes(StandardCharsets.UTF_8)), filters);
+            fail("Expected the stream to end partway through the frame");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HandlerWatchdogTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+
+    private MockRouter router;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+    }
+
+    @Test
+    public void testSlowHandlerReportedAndIsolated() throws IOException, InterruptedException {
+        final List<SlowHandlerReport> reports = new CopyOnWriteArrayList<>();
+        HandlerWatchdog watchdog = new HandlerWatchdog(50, new HandlerWatchdog.SlowHandlerListener() {
+            @Override
+            public void onSlowHandler(SlowHandlerReport report) {
+                reports.add(report);
+            }
+        }).setIsolation(2, null);
+        client.setHandlerWatchdog(watchdog);
+
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        final CountDownLatch slowReceived = new CountDownLatch(4);
+        MessageHandler slow = new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                threads.add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                slowReceived.countDown();
+            }
+        };
+        final CountDownLatch fastReceived = new CountDownLatch(4);
+        MessageHandler fast = new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                fastReceived.countDown();
+            }
+        };
+        client.subscribe(new SubscribeRequest.Builder("slow").build(), null, slow);
+        client.subscribe(new SubscribeRequest.Builder("fast").build(), null, fast);
+
+        for (int i = 0; i < 4; i++) {
+            client.publish(new PublishRequest.Builder("slow").addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) i})).build(), null);
+        }
+        for (int i = 0; i < 4; i++) {
+            client.publish(new PublishRequest.Builder("fast").addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) i})).build(), null);
+        }
+        assertTrue(slowReceived.await(5, TimeUnit.SECONDS));
+        assertTrue(fastReceived.await(5, TimeUnit.SECONDS));
+
+        assertTrue(watchdog.isIsolated(slow));
+        assertFalse(watchdog.isIsolated(fast));
+        assertEquals(2, reports.size());
+        SlowHandlerReport first = reports.get(0);
+        assertTrue(first.getHandler() == slow);
+        assertEquals(Command.RESULT, first.getCommand());
+        assertEquals(1, first.getOffenseCount());
+        assertFalse(first.isIsolated());
+        assertTrue(first.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(first.toString().contains("onResultReceived"));
+        assertTrue(reports.get(1).isIsolated());
+
+        // The first two messages ran on the listener thread, the rest on the isolation executor
+        assertFalse(threads.get(0).equals("bosswave-isolated-handlers"));
+        assertEquals("bosswave-isolated-handlers", threads.get(2));
+        assertEquals("bosswave-isolated-handlers", threads.get(3));
+    }
+
+    @Test
+    public void testDefaultIsolationExecutorShutDownOnClose() throws IOException {
+        HandlerWatchdog.SlowHandlerListener ignore = new HandlerWatchdog.SlowHandlerListener() {
+            @Override
+            public void onSlowHandler(SlowHandlerReport report) {
+            }
+        };
+        HandlerWatchdog watchdog = new HandlerWatchdog(50, ignore).setIsolation(2, null);
+        client.setHandlerWatchdog(watchdog);
+        ExecutorService owned = (ExecutorService) watchdog.getIsolationExecutor();
+
+        // A caller's executor is theirs to shut down
+        ExecutorService supplied = Executors.newSingleThreadExecutor();
+        BosswaveClient other = new BosswaveClient("localhost", router.getPort());
+        other.connect();
+        other.setHandlerWatchdog(new HandlerWatchdog(50, ignore).setIsolation(2, supplied));
+        try {
+            client.close();
+            other.close();
+            assertTrue(owned.isShutdown());
+            assertFalse(supplied.isShutdown());
+        } finally {
+            supplied.shutdown();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InboundBufferTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        InboundBuffer buffer = new InboundBuffer(2);
+        buffer.put(result(1, "a", 0), OverloadPolicy.DROP_NEWEST);
+        buffer.put(result(1, "a", 1), OverloadPolicy.DROP_NEWEST);
+        buffer.put(result(1, "a", 2), OverloadPolicy.DROP_NEWEST);
+        assertEquals(0, index(buffer.take()));
+        assertEquals(1, index(buffer.take()));
+        assertEquals(1, buffer.getStats().getDroppedCount());
+        assertEquals(2, buffer.getStats().getHighWaterMark());
+    }
+
+    @Test
+    public void testDropOldestOnlyEvictsSameSubscription() throws InterruptedException {
+        InboundBuffer buffer = new InboundBuffer(3);
+        buffer.put(new Frame.Builder(Command.RESPONSE, 1).build(), OverloadPolicy.BLOCK);
+        buffer.put(result(2, "a", 0), OverloadPolicy.BLOCK);
+        buffer.put(result(1, "a", 1), OverloadPolicy.DROP_OLDEST);
+        buffer.put(result(1, "a", 2), OverloadPolicy.DROP_OLDEST);
+
+        assertEquals(Command.RESPONSE, buffer.take().getCommand());
+        Frame other = buffer.take();
+        assertEquals(2, other.getSeqNo());
+        assertEquals(2, index(buffer.take()));
+        assertEquals(1, buffer.getStats().getDroppedCount());
+        assertEquals(0, buffer.getStats().getDepth());
+    }
+
+    @Test
+    public void testConflateByUri() throws InterruptedException {
+        InboundBuffer buffer = new InboundBuffer(8);
+        buffer.put(result(1, "a", 0), OverloadPolicy.CONFLATE);
+        buffer.put(result(1, "b", 1), OverloadPolicy.CONFLATE);
+        buffer.put(result(1, "a", 2), OverloadPolicy.CONFLATE);
+        buffer.put(result(1, "a", 3), OverloadPolicy.CONFLATE);
+
+        // The latest value for "a" keeps the position of the first
+        assertEquals(3, index(buffer.take()));
+        assertEquals(1, index(buffer.take()));
+        assertEquals(2, buffer.getStats().getConflatedCount());
+
+        // Once delivered, a URI's next message is queued again
+        buffer.put(result(1, "a", 4), OverloadPolicy.CONFLATE);
+        assertEquals(4, index(buffer.take()));
+    }
+
+    @Test
+    public void testBlockUntilTaken() throws InterruptedException {
+        final InboundBuffer buffer = new InboundBuffer(1);
+        buffer.put(result(1, "a", 0), OverloadPolicy.BLOCK);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.put(result(1, "a", 1), OverloadPolicy.BLOCK);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        assertEquals(0, index(buffer.take()));
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, index(buffer.take()));
+        assertEquals(1, buffer.getStats().getBlockedCount());
+
+        buffer.stop();
+        assertNull(buffer.take());
+    }
+
+    @Test
+    public void testQueueWait() throws InterruptedException {
+        InboundBuffer buffer = new InboundBuffer(2);
+        buffer.put(result(1, "a", 0), OverloadPolicy.BLOCK);
+        Thread.sleep(50);
+        buffer.take();
+        buffer.put(result(1, "a", 1), OverloadPolicy.BLOCK);
+        buffer.take();
+
+        InboundBufferStats stats = buffer.getStats();
+        assertEquals(2, stats.getDispatchedCount());
+        assertTrue(stats.getMaxQueueWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(stats.getMeanQueueWaitNanos() <= stats.getMaxQueueWaitNanos());
+    }
+
+    @Test
+    public void testClientDropsForSlowSubscription() throws IOException, InterruptedException {
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient publisher = new BosswaveClient("localhost", router.getPort());
+        publisher.connect();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.enableInboundBuffer(4);
+        client.connect();
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch subscribed = new CountDownLatch(1);
+            final AtomicInteger received = new AtomicInteger();
+            client.subscribe(new SubscribeRequest.Builder("slow").setOverloadPolicy(OverloadPolicy.DROP_NEWEST).build(),
+                    new ResponseHandler() {
+                        @Override
+                        public void onResponseReceived(Response result) {
+                            subscribed.countDown();
+                        }
+                    }, new MessageHandler() {
+                        @Override
+                        public void onResultReceived(Message message) {
+                            received.incrementAndGet();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+            PublishRequest request = new PublishRequest.Builder("slow").addPayloadObject(new PayloadObject(TYPE, new byte[1])).build();
+            // Wait for the handler to block on the first message before filling the buffer
+            publisher.publish(request, null);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.get() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            for (int i = 1; i < 20; i++) {
+                publisher.publish(request, null);
+            }
+
+            InboundBufferStats stats = client.getInboundBufferStats();
+            deadline = System.currentTimeMillis() + 5000;
+            while (received.get() + stats.getDepth() + stats.getDroppedCount() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            // One message is being handled and four are queued
+            assertEquals(15, stats.getDroppedCount());
+            assertEquals(4, stats.getHighWaterMark());
+            deadline = System.currentTimeMillis() + 5000;
+            while (received.get() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, received.get());
+        } finally {
+            client.close();
+            publisher.close();
+            router.close();
+        }
+    }
+
+    private static Frame result(int seqNo, String uri, int index) {
+        return new Frame.Builder(Command.RESULT, seqNo)
+                .addKVPair("uri", uri)
+                .addPayloadObject(new PayloadObject(TYPE, new byte[]{(byte) index}))
+                .build();
+    }
+
+    private static int index(Frame frame) {
+        return frame.getPayloadObjects().get(0).getContent()[0];
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullOverloadPolicyRejected() {
+        new SubscribeRequest.Builder("a/b").setOverloadPolicy(null);
+    }
+}
@@ -0,0 +1,171 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LastValueCacheTest {
+
+    private static Message makeMessage(String uri) {
+        return new Message("from", uri, Collections.<RoutingObject>emptyList(),
+                           Collections.<PayloadObject>emptyList());
+    }
+
+    @Test
+    public void testGetAndInvalidate() {
+        LastValueCache cache = new LastValueCache(4, 60000);
+        Message message = makeMessage("a/b");
+
+        cache.put("a/b", null, message);
+        assertSame(message, cache.get("a/b", null));
+        cache.invalidate("a/b");
+        assertNull(cache.get("a/b", null));
+    }
+
+    @Test
+    public void testScopedToAccessChain() {
+        LastValueCache cache = new LastValueCache(4, 60000);
+        Message message = makeMessage("a/b");
+
+        cache.put("a/b", "chainA", message);
+        assertSame(message, cache.get("a/b", "chainA"));
+        assertNull(cache.get("a/b", "chainB"));
+        assertNull(cache.get("a/b", null));
+
+        cache.put("a/b", null, message);
+        assertNull(cache.get("a/b", "chainA"));
+        assertSame(message, cache.get("a/b", null));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        LastValueCache cache = new LastValueCache(2, 60000);
+        cache.put("a", null, makeMessage("a"));
+        cache.put("b", null, makeMessage("b"));
+        cache.get("a", null); // "b" is now the least recently used entry
+        cache.put("c", null, makeMessage("c"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b", null));
+        assertTrue(cache.get("a", null) != null);
+        assertTrue(cache.get("c", null) != null);
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        LastValueCache cache = new LastValueCache(2, 20);
+        cache.put("a", null, makeMessage("a"));
+        Thread.sleep(50);
+        assertNull(cache.get("a", null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testIsCacheable() {
+        assertTrue(LastValueCache.isCacheable("castle.bw2.io/foo/bar"));
+        assertFalse(LastValueCache.isCacheable("castle.bw2.io/foo/*"));
+        assertFalse(LastValueCache.isCacheable("castle.bw2.io/+/bar"));
+    }
+
+    @Test
+    public void testSubscriptionInvalidates() throws IOException, InterruptedException {
+        PayloadObject.Type text = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            client.enableQueryCache(4, 60000);
+            client.publish(new PublishRequest.Builder("a/b").setPersist(true)
+                    .addPayloadObject(new PayloadObject(text, new byte[]{1}))
+                    .build(), null);
+            final CountDownLatch queried = new CountDownLatch(1);
+            client.queryCached(new QueryRequest.Builder("a/b").build(), null, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    queried.countDown();
+                }
+            });
+            assertTrue(queried.await(5, TimeUnit.SECONDS));
+
+            final CountDownLatch received = new CountDownLatch(1);
+            client.subscribe(new SubscribeRequest.Builder("a/b").build(), null, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    received.countDown();
+                }
+            });
+            client.publish(new PublishRequest.Builder("a/b")
+                    .addPayloadObject(new PayloadObject(text, new byte[]{2}))
+                    .build(), null);
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+
+            // The unpersisted message is not served; the router still answers with the persisted one
+            final List<Message> results = new CopyOnWriteArrayList<>();
+            final CountDownLatch requeried = new CountDownLatch(1);
+            client.queryCached(new QueryRequest.Builder("a/b").build(), null, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    results.add(message);
+                    requeried.countDown();
+                }
+            });
+            assertTrue(requeried.await(5, TimeUnit.SECONDS));
+            assertEquals(1, results.size());
+            assertEquals(1, results.get(0).getPayloadObjects().get(0).getContent()[0]);
+        } finally {
+            client.close();
+            router.close();
+        }
+    }
+
+    @Test
+    public void testQueryCachedFinishes() throws IOException, InterruptedException {
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            client.enableQueryCache(4, 60000);
+            client.publish(new PublishRequest.Builder("a/b").setPersist(true)
+                    .addPayloadObject(new PayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}), new byte[]{1}))
+                    .build(), null);
+            final List<Message> results = new CopyOnWriteArrayList<>();
+            final CountDownLatch finished = new CountDownLatch(2);
+            QueryResultHandler handler = new QueryResultHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    results.add(message);
+                }
+
+                @Override
+                public void finish() {
+                    finished.countDown();
+                }
+            };
+            // The first query misses the cache, the second hits it
+            client.queryCached(new QueryRequest.Builder("a/b").build(), null, handler);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (finished.getCount() == 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            client.queryCached(new QueryRequest.Builder("a/b").build(), null, handler);
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertEquals(2, results.size());
+        } finally {
+            client.close();
+            router.close();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures end-to-end publish/subscribe throughput and latency. Publisher clients send messages
+ * whose first payload object starts with the time the message was due to be sent, and subscriber
+ * clients record how long each message took to arrive. All clients run in this process, so their
+ * clocks agree.
+ *
+ * Run with --help for options. Without --router, an in-process MockRouter is started. This is a
+ * test-scope tool and is not part of the library jar.
+ */
+public class LoadGenerator {
+    private static final PayloadObject.Type PAYLOAD_TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+    private static final int TIMESTAMP_BYTES = 8;
+
+    private String routerHost;
+    private int routerPort;
+    private File entityFile;
+    private String accessChain;
+    private String uriPrefix = "loadgen/" + Long.toHexString(new Random().nextLong());
+    private int publishers = 1;
+    private int subscribers = 1;
+    private int payloadBytes = 64;
+    // Messages per second for each publisher, or zero to publish as fast as possible
+    private int rate = 0;
+    private int warmupSeconds = 2;
+    private int durationSeconds = 10;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(2);
+        }
+        generator.run(System.out);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--help")) {
+                printUsage(System.out);
+                System.exit(0);
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--router": {
+                    int colon = value.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Router must be given as host:port");
+                    }
+                    routerHost = value.substring(0, colon);
+                    routerPort = parseInt(option, value.substring(colon + 1), 1);
+                    break;
+                }
+                case "--entity":
+                    entityFile = new File(value);
+                    break;
+                case "--chain":
+                    accessChain = value;
+                    break;
+                case "--uri":
+                    uriPrefix = value;
+                    break;
+                case "--publishers":
+                    publishers = parseInt(option, value, 1);
+                    break;
+                case "--subscribers":
+                    subscribers = parseInt(option, value, 0);
+                    break;
+                case "--payload":
+                    payloadBytes = parseInt(option, value, TIMESTAMP_BYTES);
+                    break;
+                case "--rate":
+                    rate = parseInt(option, value, 0);
+                    break;
+                case "--warmup":
+                    warmupSeconds = parseInt(option, value, 0);
+                    break;
+                case "--duration":
+                    durationSeconds = parseInt(option, value, 1);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+    }
+
+    private static int parseInt(String option, String value, int min) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+        if (parsed < min) {
+            throw new IllegalArgumentException(option + " must be at least " + min);
+        }
+        return parsed;
+    }
+
+    private static void printUsage(PrintStream out) {
+        out.println("Usage: LoadGenerator [options]");
+        out.println("  --router host:port   Router to use (default: start an in-process mock router)");
+        out.println("  --entity file        Entity key file set on every client");
+        out.println("  --chain hash         Primary access chain for publishes and subscribes");
+        out.println("  --uri prefix         URI prefix to publish beneath (default: loadgen/<random>)");
+        out.println("  --publishers n       Number of publishing clients (default: 1)");
+        out.println("  --subscribers n      Number of subscribing clients (default: 1)");
+        out.println("  --payload bytes      Payload object size, at least 8 (default: 64)");
+        out.println("  --rate n             Messages per second per publisher, 0 for unlimited (default: 0)");
+        out.println("  --warmup seconds     Time to run before measuring (default: 2)");
+        out.println("  --duration seconds   Time to measure for (default: 10)");
+    }
+
+    private void run(PrintStream out) throws IOException, InterruptedException {
+        MockRouter mockRouter = null;
+        String host = routerHost;
+        int port = routerPort;
+        if (host == null) {
+            mockRouter = new MockRouter();
+            mockRouter.start();
+            host = "localhost";
+            port = mockRouter.getPort();
+        }
+
+        List<BosswaveClient> clients = new ArrayList<>();
+        try {
+            CountDownLatch subscribed = new CountDownLatch(subscribers);
+            AtomicReference<String> subscribeFailure = new AtomicReference<>();
+            for (int i = 0; i < subscribers; i++) {
+                BosswaveClient client = connect(host, port, clients);
+                SubscribeRequest.Builder builder = new SubscribeRequest.Builder(uriPrefix + "/*");
+                if (accessChain != null) {
+                    builder.setPrimaryAccessChain(accessChain);
+                } else {
+                    builder.setAutoChain(true);
+                }
+                client.subscribe(builder.build(), new StartupResponseHandler(subscribed, subscribeFailure), new MessageHandler() {
+                    @Override
+                    public void onResultReceived(Message message) {
+                        long receivedAt = System.nanoTime();
+                        byte[] content = message.getPayloadObjects().get(0).getContent();
+                        latencies.recordValue(receivedAt - readTimestamp(content));
+                        received.incrementAndGet();
+                    }
+                });
+            }
+            if (!subscribed.await(30, TimeUnit.SECONDS)) {
+                throw new RuntimeException("Timed out waiting for subscriptions");
+            }
+            if (subscribeFailure.get() != null) {
+                throw new IOException("Subscribe failed: " + subscribeFailure.get());
+            }
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < publishers; i++) {
+                Thread thread = new Thread(new Publisher(connect(host, port, clients), uriPrefix + "/" + i),
+                        "loadgen-publisher-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+            sent.set(0);
+            received.set(0);
+            latencies.reset();
+            long start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            long sentCount = sent.get();
+            long receivedCount = received.get();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            running = false;
+            for (Thread thread : threads) {
+                thread.join(1000);
+            }
+            report(out, elapsed, sentCount, receivedCount);
+        } finally {
+            for (BosswaveClient client : clients) {
+                client.close();
+            }
+            if (mockRouter != null) {
+                mockRouter.close();
+            }
+        }
+    }
+
+    private BosswaveClient connect(String host, int port, List<BosswaveClient> clients) throws IOException {
+        BosswaveClient client = new BosswaveClient(host, port);
+        client.connect();
+        clients.add(client);
+        if (entityFile != null) {
+            client.setEntityFile(entityFile, null);
+        }
+        return client;
+    }
+
+    private void report(PrintStream out, double elapsed, long sentCount, long receivedCount) {
+        out.printf("publishers %d, subscribers %d, payload %d bytes, measured over %.1f s%n",
+                publishers, subscribers, payloadBytes, elapsed);
+        out.printf("published %d messages (%.0f msg/s)%n", sentCount, sentCount / elapsed);
+        out.printf("received  %d messages (%.0f msg/s)%n", receivedCount, receivedCount / elapsed);
+        out.printf("latency (us): mean %.1f", latencies.getMean() / 1000);
+        double[] percentiles = {50, 90, 99, 99.9, 99.99};
+        for (double percentile : percentiles) {
+            out.printf(", p%s %.1f", formatPercentile(percentile), latencies.getValueAtPercentile(percentile) / 1000.0);
+        }
+        out.printf(", max %.1f%n", latencies.getMax() / 1000.0);
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile);
+    }
+
+    private static void writeTimestamp(byte[] buffer, long timestamp) {
+        for (int i = TIMESTAMP_BYTES - 1; i >= 0; i--) {
+            buffer[i] = (byte) timestamp;
+            timestamp >>>= 8;
+        }
+    }
+
+    private static long readTimestamp(byte[] buffer) {
+        long timestamp = 0;
+        for (int i = 0; i < TIMESTAMP_BYTES; i++) {
+            timestamp = (timestamp << 8) | (buffer[i] & 0xff);
+        }
+        return timestamp;
+    }
+
+    private class Publisher implements Runnable {
+        private final BosswaveClient client;
+        private final ReusablePublishRequest request;
+        private final byte[] payload;
+
+        private Publisher(BosswaveClient client, String uri) {
+            this.client = client;
+            PublishRequest.Builder builder = new PublishRequest.Builder(uri);
+            if (accessChain != null) {
+                builder.setPrimaryAccessChain(accessChain);
+            } else {
+                builder.setAutoChain(true);
+            }
+            payload = new byte[payloadBytes];
+            request = new ReusablePublishRequest(builder.build());
+            request.addPayloadObject(PAYLOAD_TYPE, payload);
+        }
+
+        @Override
+        public void run() {
+            long interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+            long due = System.nanoTime();
+            try {
+                while (running) {
+                    if (interval > 0) {
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    } else {
+                        due = System.nanoTime();
+                    }
+                    // Stamping the scheduled time rather than the actual time means a publisher
+                    // that falls behind its rate reports the delay instead of hiding it
+                    writeTimestamp(payload, due);
+                    client.publish(request, null);
+                    sent.incrementAndGet();
+                    due += interval;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (running) {
+                    throw new RuntimeException("Publisher failed", e);
+                }
+            }
+        }
+    }
+
+    private static class StartupResponseHandler implements ResponseHandler {
+        private final CountDownLatch latch;
+        // The first failure reported, left for run() to throw
+        private final AtomicReference<String> failure;
+
+        private StartupResponseHandler(CountDownLatch latch, AtomicReference<String> failure) {
+            this.latch = latch;
+            this.failure = failure;
+        }
+
+        @Override
+        public void onResponseReceived(Response result) {
+            if (!result.getStatus().equals("okay")) {
+                failure.compareAndSet(null, result.getReason());
+            }
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MalformedFrameTest {
+    private ServerSocket server;
+    private Socket router;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new BosswaveClient("localhost", server.getLocalPort());
+        Thread connect = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.connect();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        connect.start();
+        router = server.accept();
+        router.getOutputStream().write("helo 0000000000 0000000000\nend\n".getBytes(StandardCharsets.UTF_8));
+        connect.join(5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+        server.close();
+    }
+
+    @Test
+    public void testListenerSurvivesMalformedFrames() throws IOException, InterruptedException {
+        final List<String> reasons = new CopyOnWriteArrayList<>();
+        client.setDroppedFrameHandler(new DroppedFrameHandler() {
+            @Override
+            public void onFrameDropped(String reason, long skippedBytes) {
+                reasons.add(reason);
+            }
+        });
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        client.subscribe(new SubscribeRequest.Builder("a/b").build(), null, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.add(new String(message.getPayloadObjects().get(0).getContent(), StandardCharsets.UTF_8));
+                latch.countDown();
+            }
+        });
+        InputStream in = router.getInputStream();
+        int seqNo = Frame.readFromStream(in).getSeqNo();
+
+        OutputStream out = router.getOutputStream();
+        out.write(result(seqNo, "first"));
+        // An unknown command, then an item with a bad length in an otherwise valid frame
+        out.write("bogs 0000000000 0000000001\nkv uri 3\na/b\nend\n".getBytes(StandardCharsets.UTF_8));
+        out.write(("rslt 0000000000 " + String.format("%010d", seqNo) + "\nkv uri x\n").getBytes(StandardCharsets.UTF_8));
+        out.write(result(seqNo, "second"));
+        out.flush();
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("first", received.get(0));
+        assertEquals("second", received.get(1));
+        assertEquals(2, client.getDroppedFrameCount());
+        assertEquals(2, reasons.size());
+    }
+
+    @Test
+    public void testCaptureKeepsMalformedBytes() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("capture").toFile();
+        File base = new File(directory, "malformed");
+        try {
+            WireCapture capture = new WireCapture(base, 4096);
+            client.startCapture(capture);
+            final CountDownLatch latch = new CountDownLatch(2);
+            client.subscribe(new SubscribeRequest.Builder("a/b").build(), null, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    latch.countDown();
+                }
+            });
+            int seqNo = Frame.readFromStream(router.getInputStream()).getSeqNo();
+
+            // The listener is already waiting on a read without the capture, so the first frame may be missed
+            router.getOutputStream().write(result(seqNo, "first"));
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            sent.write("bogs 0000000000 0000000001\nkv uri 3\na/b\nend\n".getBytes(StandardCharsets.UTF_8));
+            sent.write(("rslt 0000000000 " + String.format("%010d", seqNo) + "\nkv uri x\n").getBytes(StandardCharsets.UTF_8));
+            sent.write(result(seqNo, "second"));
+            router.getOutputStream().write(sent.toByteArray());
+            router.getOutputStream().flush();
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            client.stopCapture();
+            capture.close();
+
+            // Every byte received after the first frame, malformed or not, is in the capture exactly once
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            try (WireCaptureReader reader = new WireCaptureReader(base)) {
+                CapturedFrame frame;
+                while ((frame = reader.next()) != null) {
+                    if (frame.isInbound()) {
+                        captured.write(frame.getBytes());
+                    }
+                }
+            }
+            String expected = sent.toString(StandardCharsets.UTF_8.name());
+            assertTrue(captured.toString(StandardCharsets.UTF_8.name()).endsWith(expected));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static byte[] result(int seqNo, String content) throws IOException {
+        Frame.Builder builder = new Frame.Builder(Command.RESULT, seqNo);
+        builder.addKVPair("uri", "a/b");
+        builder.addKVPair("from", "router");
+        builder.addPayloadObject(new PayloadObject(new PayloadObject.Type(new byte[]{1, 0, 0, 0}),
+                content.getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.build().writeToStream(out);
+        return out.toByteArray();
+    }
+}
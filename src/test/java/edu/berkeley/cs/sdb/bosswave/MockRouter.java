@@ -0,0 +1,498 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A minimal in-process Bosswave router for tests and benchmarks. It speaks the router's side of
+ * the wire protocol on a loopback port but performs no cryptography or permission checks: any
+ * entity is accepted and every request is authorized unless its URI was passed to deny.
+ * Persisted messages are held in memory.
+ *
+ * Supported commands are SET_ENTITY, PUBLISH, PERSIST, SUBSCRIBE, QUERY, LIST, and BUILD_CHAIN
+ * (which only finds chains registered with addChain). Any other command receives an error
+ * response.
+ */
+public class MockRouter implements AutoCloseable {
+    // Reported as the sender of every delivered message
+    public static final String FROM = "mockrouter";
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final Set<Connection> connections;
+    // Subscriptions without wildcards are found by URI, the rest are matched one by one
+    private final ConcurrentHashMap<String, List<Subscription>> exactSubscriptions;
+    private final List<Subscription> wildcardSubscriptions;
+    // Sorted so that LIST and wildcard queries only visit URIs under a common prefix
+    private final ConcurrentNavigableMap<String, byte[]> persisted;
+    // Requests on URIs under these prefixes are rejected
+    private final Set<String> deniedPrefixes;
+    private final List<MockChain> chains;
+    private volatile boolean closed;
+
+    // Listens on an ephemeral loopback port, see getPort()
+    public MockRouter() throws IOException {
+        this(0);
+    }
+
+    public MockRouter(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "bosswave-mock-router");
+        acceptThread.setDaemon(true);
+        connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+        exactSubscriptions = new ConcurrentHashMap<>();
+        wildcardSubscriptions = new CopyOnWriteArrayList<>();
+        persisted = new ConcurrentSkipListMap<>();
+        deniedPrefixes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        chains = new CopyOnWriteArrayList<>();
+    }
+
+    public void start() {
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // The number of URIs currently holding a persisted message
+    public int getPersistedCount() {
+        return persisted.size();
+    }
+
+    // Rejects every later request whose URI starts with the prefix, as if permission were denied
+    public void deny(String prefix) {
+        deniedPrefixes.add(prefix);
+    }
+
+    // Stops rejecting requests under a prefix passed to deny
+    public void allow(String prefix) {
+        deniedPrefixes.remove(prefix);
+    }
+
+    /**
+     * Makes BUILD_CHAIN return a chain for any request it satisfies, regardless of the entity.
+     * @param uri The URI pattern the chain grants access to
+     * @param permissions The permissions the chain grants, e.g. "PC"
+     */
+    public void addChain(String hash, String uri, String permissions) {
+        chains.add(new MockChain(hash, uri, permissions));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        try {
+            acceptThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptConnections() {
+        try {
+            while (!closed) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connection.start();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                throw new RuntimeException("Mock router failed to accept a connection", e);
+            }
+        }
+    }
+
+    private void handleFrame(Connection connection, Frame frame) throws IOException {
+        int seqNo = frame.getSeqNo();
+        String deniedUri = getString(frame, "uri");
+        if (deniedUri != null && isDenied(deniedUri)) {
+            connection.sendResponse(seqNo, "Permission denied for " + deniedUri);
+            return;
+        }
+        switch (frame.getCommand()) {
+            case SET_ENTITY:
+                connection.sendResponse(seqNo, null);
+                break;
+
+            case PUBLISH:
+            case PERSIST: {
+                String uri = getString(frame, "uri");
+                if (uri == null || UriMatcher.hasWildcard(uri)) {
+                    connection.sendResponse(seqNo, "Cannot publish to a URI containing wildcards");
+                    break;
+                }
+                connection.sendResponse(seqNo, null);
+                byte[] body = encodeMessage(uri, frame);
+                if (frame.getCommand() == Command.PERSIST || "true".equals(getString(frame, "persist"))) {
+                    persisted.put(uri, body);
+                }
+                deliver(uri, body);
+                break;
+            }
+
+            case SUBSCRIBE: {
+                String uri = getString(frame, "uri");
+                if (uri == null) {
+                    connection.sendResponse(seqNo, "Missing URI");
+                    break;
+                }
+                addSubscription(new Subscription(connection, seqNo, uri, isUnpack(frame)));
+                connection.sendResponse(seqNo, null);
+                break;
+            }
+
+            case QUERY: {
+                String uri = getString(frame, "uri");
+                if (uri == null) {
+                    connection.sendResponse(seqNo, "Missing URI");
+                    break;
+                }
+                connection.sendResponse(seqNo, null);
+                boolean unpack = isUnpack(frame);
+                if (!UriMatcher.hasWildcard(uri)) {
+                    byte[] body = persisted.get(uri);
+                    if (body != null) {
+                        connection.sendResult(seqNo, body, unpack);
+                    }
+                } else {
+                    String prefix = literalPrefix(uri);
+                    for (Map.Entry<String, byte[]> entry : persistedUnder(prefix).entrySet()) {
+                        if (UriMatcher.matches(uri, entry.getKey())) {
+                            connection.sendResult(seqNo, entry.getValue(), unpack);
+                        }
+                    }
+                }
+                connection.sendFinished(seqNo);
+                break;
+            }
+
+            case LIST: {
+                String uri = getString(frame, "uri");
+                if (uri == null) {
+                    connection.sendResponse(seqNo, "Missing URI");
+                    break;
+                }
+                connection.sendResponse(seqNo, null);
+                String parent = uri.endsWith("/") ? uri : uri + "/";
+                Set<String> children = new LinkedHashSet<>();
+                for (String child : persistedUnder(parent).keySet()) {
+                    int end = child.indexOf('/', parent.length());
+                    children.add(end < 0 ? child : child.substring(0, end));
+                }
+                for (String child : children) {
+                    Frame.Builder builder = new Frame.Builder(Command.RESULT, seqNo);
+                    builder.addKVPair("child", child);
+                    builder.addKVPair("finished", "false");
+                    connection.send(builder.build());
+                }
+                connection.sendFinished(seqNo);
+                break;
+            }
+
+            case BUILD_CHAIN: {
+                connection.sendResponse(seqNo, null);
+                String uri = getString(frame, "uri");
+                String permissions = getString(frame, "addrperms");
+                for (MockChain chain : chains) {
+                    if (uri != null && permissions != null && chain.grants(uri, permissions)) {
+                        Frame.Builder builder = new Frame.Builder(Command.RESULT, seqNo);
+                        builder.addKVPair("hash", chain.hash);
+                        builder.addKVPair("permissions", chain.permissions);
+                        builder.addKVPair("uri", chain.uri);
+                        builder.addKVPair("to", String.valueOf(getString(frame, "to")));
+                        builder.addKVPair("finished", "false");
+                        connection.send(builder.build());
+                    }
+                }
+                connection.sendFinished(seqNo);
+                break;
+            }
+
+            default:
+                connection.sendResponse(seqNo, "Command not supported by mock router: " + frame.getCommand());
+        }
+    }
+
+    private boolean isDenied(String uri) {
+        for (String prefix : deniedPrefixes) {
+            if (uri.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addSubscription(Subscription subscription) {
+        if (UriMatcher.hasWildcard(subscription.uri)) {
+            wildcardSubscriptions.add(subscription);
+            return;
+        }
+        List<Subscription> subscriptions = exactSubscriptions.get(subscription.uri);
+        if (subscriptions == null) {
+            List<Subscription> created = new CopyOnWriteArrayList<>();
+            subscriptions = exactSubscriptions.putIfAbsent(subscription.uri, created);
+            if (subscriptions == null) {
+                subscriptions = created;
+            }
+        }
+        subscriptions.add(subscription);
+    }
+
+    private void removeSubscriptions(Connection connection) {
+        for (Subscription subscription : wildcardSubscriptions) {
+            if (subscription.connection == connection) {
+                wildcardSubscriptions.remove(subscription);
+            }
+        }
+        for (List<Subscription> subscriptions : exactSubscriptions.values()) {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.connection == connection) {
+                    subscriptions.remove(subscription);
+                }
+            }
+        }
+    }
+
+    private void deliver(String uri, byte[] body) {
+        List<Subscription> exact = exactSubscriptions.get(uri);
+        if (exact != null) {
+            for (Subscription subscription : exact) {
+                subscription.deliver(body);
+            }
+        }
+        for (Subscription subscription : wildcardSubscriptions) {
+            if (UriMatcher.matches(subscription.uri, uri)) {
+                subscription.deliver(body);
+            }
+        }
+    }
+
+    private ConcurrentNavigableMap<String, byte[]> persistedUnder(String prefix) {
+        if (prefix.isEmpty()) {
+            return persisted;
+        }
+        // Every string starting with the prefix sorts before the prefix with its last char incremented
+        char last = prefix.charAt(prefix.length() - 1);
+        String upper = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+        return persisted.subMap(prefix, upper);
+    }
+
+    // The part of a pattern before its first wildcard segment
+    private static String literalPrefix(String pattern) {
+        int end = 0;
+        while (end < pattern.length()) {
+            int next = pattern.indexOf('/', end);
+            String segment = pattern.substring(end, next < 0 ? pattern.length() : next);
+            if (segment.equals("+") || segment.equals("*")) {
+                return pattern.substring(0, end);
+            }
+            if (next < 0) {
+                break;
+            }
+            end = next + 1;
+        }
+        return pattern;
+    }
+
+    // Encodes the body of a RESULT frame carrying a published message, shared by every recipient
+    private static byte[] encodeMessage(String uri, Frame publish) throws IOException {
+        Frame.Builder builder = new Frame.Builder(Command.RESULT, 0);
+        builder.addKVPair("uri", uri);
+        builder.addKVPair("from", FROM);
+        for (RoutingObject ro : publish.getRoutingObjects()) {
+            builder.addRoutingObject(ro);
+        }
+        for (PayloadObject po : publish.getPayloadObjects()) {
+            builder.addPayloadObject(po);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.build().writeObjectsToStream(out);
+        return out.toByteArray();
+    }
+
+    private static String getString(Frame frame, String key) {
+        byte[] value = frame.getFirstValue(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    // Like the real router, results stay packed unless the request asks otherwise
+    private static boolean isUnpack(Frame frame) {
+        return "true".equals(getString(frame, "unpack"));
+    }
+
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Thread thread;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            thread = new Thread(this, "bosswave-mock-router-connection");
+            thread.setDaemon(true);
+        }
+
+        private void start() throws IOException {
+            send(new Frame.Builder(Command.HELLO, Frame.generateSequenceNumber()).build());
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    handleFrame(this, Frame.readFromStream(in));
+                }
+            } catch (IOException e) {
+                // The client disconnected or sent a malformed frame; either way the connection is done
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            if (connections.remove(this)) {
+                removeSubscriptions(this);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        private void send(Frame frame) throws IOException {
+            synchronized (out) {
+                frame.writeToStream(out);
+                out.flush();
+            }
+        }
+
+        private void sendResponse(int seqNo, String error) throws IOException {
+            Frame.Builder builder = new Frame.Builder(Command.RESPONSE, seqNo);
+            if (error == null) {
+                builder.addKVPair("status", "okay");
+            } else {
+                builder.addKVPair("status", "error");
+                builder.addKVPair("reason", error);
+            }
+            send(builder.build());
+        }
+
+        private void sendFinished(int seqNo) throws IOException {
+            Frame.Builder builder = new Frame.Builder(Command.RESULT, seqNo);
+            builder.addKVPair("finished", "true");
+            send(builder.build());
+        }
+
+        private void sendResult(int seqNo, byte[] body, boolean unpack) throws IOException {
+            synchronized (out) {
+                Frame.writeHeader(out, Command.RESULT, seqNo);
+                if (unpack) {
+                    out.write(body);
+                } else {
+                    writeEnvelope(body);
+                }
+                Frame.writeEnd(out);
+                out.flush();
+            }
+        }
+
+        // Writes only the uri and from pairs that lead every encoded message body
+        private void writeEnvelope(byte[] body) throws IOException {
+            int offset = 0;
+            for (int pair = 0; pair < 2; pair++) {
+                int headerEnd = indexOf(body, (byte) '\n', offset);
+                String header = new String(body, offset, headerEnd - offset, StandardCharsets.UTF_8);
+                int length = Integer.parseInt(header.substring(header.lastIndexOf(' ') + 1));
+                offset = headerEnd + 1 + length + 1;
+            }
+            out.write(body, 0, offset);
+            out.write("kv unpack 5\nfalse\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Subscription {
+        private final Connection connection;
+        private final int seqNo;
+        private final String uri;
+        private final boolean unpack;
+
+        private Subscription(Connection connection, int seqNo, String uri, boolean unpack) {
+            this.connection = connection;
+            this.seqNo = seqNo;
+            this.uri = uri;
+            this.unpack = unpack;
+        }
+
+        private void deliver(byte[] body) {
+            try {
+                connection.sendResult(seqNo, body, unpack);
+            } catch (IOException e) {
+                // The subscriber has gone away
+                connection.close();
+            }
+        }
+    }
+
+    private static class MockChain {
+        private final String hash;
+        private final String uri;
+        private final String permissions;
+
+        private MockChain(String hash, String uri, String permissions) {
+            this.hash = hash;
+            this.uri = uri;
+            this.permissions = permissions;
+        }
+
+        private boolean grants(String requestedUri, String requestedPermissions) {
+            for (int i = 0; i < requestedPermissions.length(); i++) {
+                if (permissions.indexOf(requestedPermissions.charAt(i)) < 0) {
+                    return false;
+                }
+            }
+            return UriMatcher.matches(uri, requestedUri);
+        }
+    }
+}
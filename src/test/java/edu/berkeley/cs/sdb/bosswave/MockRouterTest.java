@@ -0,0 +1,76 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class MockRouterTest {
+    private static final PayloadObject.Type TEXT = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+
+    private MockRouter router;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+
+        publish("a/b/c", "1", true);
+        publish("a/b/d/e", "2", true);
+        publish("a/x", "3", true);
+        publish("a/y", "4", false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+    }
+
+    @Test
+    public void testWildcardQuery() throws IOException {
+        Set<String> contents = new HashSet<>();
+        try (ResultStream<Message> results = client.queryStream(new QueryRequest.Builder("a/*").build(), 16)) {
+            for (Message message : results) {
+                contents.add(new String(message.getPayloadObjects().get(0).getContent(), StandardCharsets.UTF_8));
+            }
+        }
+
+        Set<String> expected = new HashSet<>();
+        expected.add("1");
+        expected.add("2");
+        expected.add("3");
+        assertEquals(expected, contents);
+        assertEquals(3, router.getPersistedCount());
+    }
+
+    @Test
+    public void testList() throws IOException {
+        Set<String> children = new HashSet<>();
+        try (ResultStream<String> results = client.listStream(new ListRequest.Builder("a").build(), 16)) {
+            for (String child : results) {
+                children.add(child);
+            }
+        }
+
+        Set<String> expected = new HashSet<>();
+        expected.add("a/b");
+        expected.add("a/x");
+        assertEquals(expected, children);
+    }
+
+    private void publish(String uri, String content, boolean persist) throws IOException {
+        PublishRequest.Builder builder = new PublishRequest.Builder(uri).setPersist(persist);
+        builder.addPayloadObject(new PayloadObject(TEXT, content.getBytes(StandardCharsets.UTF_8)));
+        client.publish(builder.build(), null);
+    }
+}
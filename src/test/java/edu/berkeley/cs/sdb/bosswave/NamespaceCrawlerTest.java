@@ -0,0 +1,113 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NamespaceCrawlerTest {
+    private static final PayloadObject.Type TEXT = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+
+    private MockRouter router;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+
+        String[] uris = {"a/b/c", "a/b/d/e", "a/b/d/f", "a/x/y", "a/z"};
+        final CountDownLatch published = new CountDownLatch(uris.length);
+        for (String uri : uris) {
+            client.publish(new PublishRequest.Builder(uri).setPersist(true)
+                    .addPayloadObject(new PayloadObject(TEXT, new byte[]{1})).build(), new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    published.countDown();
+                }
+            });
+        }
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+    }
+
+    @Test
+    public void testCrawlTree() {
+        NamespaceCrawler crawler = new NamespaceCrawler(client, 2);
+        List<String> found = new ArrayList<>();
+        for (String uri : crawler.crawlStream(new ListRequest.Builder("a").build(), 4)) {
+            found.add(uri);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a/b", "a/b/c", "a/b/d", "a/b/d/e", "a/b/d/f", "a/x", "a/x/y", "a/z")),
+                     new HashSet<>(found));
+        // Each URI is reported once
+        assertEquals(8, found.size());
+    }
+
+    @Test
+    public void testRejectedListIsLeaf() {
+        router.deny("a/b");
+        NamespaceCrawler crawler = new NamespaceCrawler(client, 4);
+        Set<String> found = new HashSet<>();
+        for (String uri : crawler.crawlStream(new ListRequest.Builder("a").build(), 16)) {
+            found.add(uri);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a/b", "a/x", "a/x/y", "a/z")), found);
+    }
+
+    @Test
+    public void testSendFailureFinishesCrawl() throws IOException, InterruptedException {
+        client.close();
+        NamespaceCrawler crawler = new NamespaceCrawler(client, 4);
+
+        final List<Response> responses = new CopyOnWriteArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        crawler.crawl(new ListRequest.Builder("a").build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                responses.add(result);
+            }
+        }, new ListResultHandler() {
+            @Override
+            public void onResult(String result) {
+            }
+
+            @Override
+            public void finish() {
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, responses.size());
+        assertFalse(responses.get(0).getStatus().equals("okay"));
+
+        ResultStream<String> stream = crawler.crawlStream(new ListRequest.Builder("a").build(), 4);
+        try {
+            stream.hasNext();
+            fail("Expected the stream to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("Failed to issue LIST for a"));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundLanesTest {
+
+    @Test
+    public void testControlOvertakesQueuedBulk() throws IOException, InterruptedException {
+        final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slowStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                firstWriteStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.write(b, off, len);
+            }
+        };
+
+        OutboundLanes lanes = new OutboundLanes(slowStream, 1024);
+        lanes.start();
+        lanes.enqueue(bytes("bulk1 "), true);
+        firstWriteStarted.await(); // The writer is now busy with the first bulk frame
+        lanes.enqueue(bytes("bulk2 "), true);
+        lanes.enqueue(bytes("control "), false);
+        release.countDown();
+        lanes.stop();
+
+        assertEquals("bulk1 control bulk2 ", written.toString(StandardCharsets.UTF_8.name()));
+        assertEquals(2, lanes.getBulkStats().getFrameCount());
+        assertEquals(1, lanes.getControlStats().getFrameCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testEnqueueAfterStop() throws IOException {
+        OutboundLanes lanes = new OutboundLanes(new ByteArrayOutputStream(), 1024);
+        lanes.start();
+        lanes.stop();
+        lanes.enqueue(bytes("late"), false);
+    }
+
+    @Test
+    public void testFullLaneBlocks() throws IOException, InterruptedException {
+        final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slowStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                firstWriteStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.write(b, off, len);
+            }
+        };
+
+        final OutboundLanes lanes = new OutboundLanes(slowStream, 8);
+        lanes.start();
+        lanes.enqueue(bytes("bulk1 "), true);
+        firstWriteStarted.await();
+        // Fills the bulk lane; a frame larger than the lane is accepted while the lane is empty
+        lanes.enqueue(bytes("bulk2 bulk2 "), true);
+
+        final CountDownLatch enqueued = new CountDownLatch(1);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lanes.enqueue(bytes("bulk3 "), true);
+                    enqueued.countDown();
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        producer.start();
+        assertFalse(enqueued.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, lanes.getBulkQueueDepth());
+        // The control lane is bounded separately, so it still has room
+        lanes.enqueue(bytes("control "), false);
+
+        release.countDown();
+        assertTrue(enqueued.await(5, TimeUnit.SECONDS));
+        lanes.stop();
+        assertNull(failure.get());
+        assertEquals("bulk1 control bulk2 bulk2 bulk3 ", written.toString(StandardCharsets.UTF_8.name()));
+    }
+
+    @Test
+    public void testStopReleasesBlockedProducer() throws IOException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuckStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        final OutboundLanes lanes = new OutboundLanes(stuckStream, 4);
+        lanes.start();
+        lanes.enqueue(bytes("a"), true);
+        lanes.enqueue(bytes("bcd"), true);
+
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lanes.enqueue(bytes("efgh"), true);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+                done.countDown();
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+        lanes.stop();
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(failure.get());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,39 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class PreparedPublishTest {
+
+    @Test
+    public void testMatchesFullEncoding() throws IOException {
+        PublishRequest.Builder builder = new PublishRequest.Builder("castle.bw2.io/foo/bar");
+        builder.setPersist(true).setExpiryDelta(3600000).setPrimaryAccessChain("pac");
+        builder.addRoutingObject(new RoutingObject(2, "testRO".getBytes(StandardCharsets.UTF_8)));
+        PayloadObject po = new PayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}),
+                                             "Hello, World!".getBytes(StandardCharsets.UTF_8));
+        builder.addPayloadObject(po);
+        PublishRequest request = builder.build();
+
+        Frame.Builder frameBuilder = new Frame.Builder(Command.PERSIST, 1234);
+        BosswaveClient.addPublishHeaders(frameBuilder, request);
+        frameBuilder.addRoutingObject(request.getRoutingObjects().get(0));
+        frameBuilder.addPayloadObject(po);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        frameBuilder.build().writeToStream(expected);
+
+        PreparedPublish prepared = new PreparedPublish(request);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        Frame.writeHeader(actual, prepared.getCommand(), 1234);
+        actual.write(prepared.getEncodedHeaders());
+        po.writeToStream(actual);
+        Frame.writeEnd(actual);
+
+        assertEquals(expected.toString(StandardCharsets.UTF_8.name()), actual.toString(StandardCharsets.UTF_8.name()));
+    }
+}
@@ -0,0 +1,92 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RawMessageTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+
+    private MockRouter router;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MockRouter();
+        router.start();
+        client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        router.close();
+    }
+
+    @Test
+    public void testForwardRaw() throws IOException, InterruptedException {
+        final AtomicReference<Message> forwarded = new AtomicReference<>();
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch subscribed = new CountDownLatch(2);
+        ResponseHandler onSubscribed = new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                subscribed.countDown();
+            }
+        };
+        client.subscribe(new SubscribeRequest.Builder("out/a").build(), onSubscribed, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                forwarded.set(message);
+                received.countDown();
+            }
+        });
+
+        final AtomicReference<RawMessage> raw = new AtomicReference<>();
+        final PreparedPublish target = new PreparedPublish(new PublishRequest.Builder("out/a").build());
+        client.subscribeRaw(new SubscribeRequest.Builder("in/a").build(), onSubscribed, new RawMessageHandler() {
+            @Override
+            public void onRawMessage(RawMessage message) {
+                raw.set(message);
+                try {
+                    client.publishRaw(target, message, null);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        RoutingObject ro = new RoutingObject(7, "route".getBytes(StandardCharsets.UTF_8));
+        PayloadObject first = new PayloadObject(TYPE, "first".getBytes(StandardCharsets.UTF_8));
+        PayloadObject second = new PayloadObject(new PayloadObject.Type(64), new byte[]{0, '\n', 1});
+        client.publish(new PublishRequest.Builder("in/a").addRoutingObject(ro)
+                .addPayloadObject(first).addPayloadObject(second).build(), null);
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        assertEquals("in/a", raw.get().getUri());
+        ByteBuffer objects = raw.get().getObjects();
+        byte[] bytes = new byte[objects.remaining()];
+        objects.get(bytes);
+        assertEquals("ro 7 5\nroute\npo 1.0.0.0: 5\nfirst\npo :64 3\n\0\n\1\n", new String(bytes, StandardCharsets.UTF_8));
+
+        Message message = forwarded.get();
+        assertEquals("out/a", message.getUri());
+        assertEquals(1, message.getRoutingObjects().size());
+        assertEquals(ro, message.getRoutingObjects().get(0));
+        assertEquals(2, message.getPayloadObjects().size());
+        assertEquals(first, message.getPayloadObjects().get(0));
+        assertEquals(second, message.getPayloadObjects().get(1));
+    }
+}
@@ -0,0 +1,113 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResultStreamTest {
+
+    @Test
+    public void testConsumeWhileFilling() throws InterruptedException {
+        final ResultStream<Integer> stream = new ResultStream<>(2);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    stream.offer(i);
+                }
+                stream.finish();
+            }
+        });
+        producer.start();
+
+        List<Integer> results = new ArrayList<>();
+        for (Integer i : stream) {
+            results.add(i);
+        }
+        producer.join();
+
+        assertEquals(100, results.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) results.get(i));
+        }
+    }
+
+    @Test
+    public void testCloseStopsBuffering() {
+        ResultStream<String> stream = new ResultStream<>(4);
+        stream.offer("a");
+        assertTrue(stream.hasNext());
+        stream.close();
+        assertFalse(stream.hasNext());
+
+        stream.offer("b");
+        stream.finish();
+        assertFalse(stream.hasNext());
+    }
+
+    @Test
+    public void testCloseWakesBlockedConsumer() throws InterruptedException {
+        final ResultStream<String> stream = new ResultStream<>(4);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] hasNext = {true};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                hasNext[0] = stream.hasNext();
+                done.countDown();
+            }
+        });
+        consumer.start();
+        // Give the consumer time to block waiting for a result
+        Thread.sleep(100);
+        stream.close();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(hasNext[0]);
+    }
+
+    @Test
+    public void testClosedQueryStreamReleasesClient() throws IOException, InterruptedException {
+        MockRouter router = new MockRouter();
+        router.start();
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            PayloadObject.Type type = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+            for (int i = 0; i < 8; i++) {
+                client.publish(new PublishRequest.Builder("a/" + i).setPersist(true)
+                        .addPayloadObject(new PayloadObject(type, new byte[]{(byte) i})).build(), null);
+            }
+            // Far more results than the stream holds, none of them read
+            ResultStream<Message> stream = client.queryStream(new QueryRequest.Builder("a/+").build(), 1);
+            stream.close();
+
+            final CountDownLatch published = new CountDownLatch(1);
+            client.publish(new PublishRequest.Builder("b").build(), new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    published.countDown();
+                }
+            });
+            assertTrue(published.await(5, TimeUnit.SECONDS));
+            assertFalse(stream.hasNext());
+        } finally {
+            client.close();
+            router.close();
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testFailure() {
+        ResultStream<String> stream = new ResultStream<>(4);
+        stream.fail("no permission");
+        stream.hasNext();
+    }
+}
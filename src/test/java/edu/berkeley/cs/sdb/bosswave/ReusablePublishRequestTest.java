@@ -0,0 +1,110 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReusablePublishRequestTest {
+
+    @Test
+    public void testReuse() throws IOException {
+        PublishRequest request = new PublishRequest.Builder("castle.bw2.io/foo/bar").build();
+        PayloadObject.Type type = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+        byte[] buffer = "xxHello, World!xx".getBytes(StandardCharsets.UTF_8);
+
+        ReusablePublishRequest reusable = new ReusablePublishRequest(request);
+        reusable.addPayloadObject(type, buffer, 2, 13);
+        assertEquals(encode(request, "Hello, World!"), encode(reusable));
+
+        byte[] next = "Bosswave 2".getBytes(StandardCharsets.UTF_8);
+        reusable.setPayloadObject(0, next, 0, next.length);
+        assertEquals(encode(request, "Bosswave 2"), encode(reusable));
+
+        reusable.clearPayloadObjects();
+        for (int i = 0; i < 10; i++) {
+            reusable.addPayloadObject(type, next);
+        }
+        assertEquals(10, reusable.getPayloadObjectCount());
+    }
+
+    @Test
+    public void testPersistReportedAsPersist() throws IOException, InterruptedException {
+        try (MockRouter router = new MockRouter()) {
+            router.start();
+            BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+            client.connect();
+            try {
+                final List<Command> sent = new CopyOnWriteArrayList<>();
+                final List<Command> responded = new CopyOnWriteArrayList<>();
+                final CountDownLatch responseTimed = new CountDownLatch(1);
+                client.addMetricsListener(new MetricsListener() {
+                    @Override
+                    public void onFrameSent(Command command) {
+                        sent.add(command);
+                    }
+
+                    @Override
+                    public void onFrameReceived(Command command) {
+                    }
+
+                    @Override
+                    public void onBytesSent(int count) {
+                    }
+
+                    @Override
+                    public void onBytesReceived(int count) {
+                    }
+
+                    @Override
+                    public void onResponse(Command command, long latencyNanos, boolean okay) {
+                        responded.add(command);
+                        responseTimed.countDown();
+                    }
+                });
+
+                ReusablePublishRequest reusable =
+                        new ReusablePublishRequest(new PublishRequest.Builder("a/b").setPersist(true).build());
+                reusable.addPayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}), new byte[]{1});
+                final CountDownLatch published = new CountDownLatch(1);
+                client.publish(reusable, new ResponseHandler() {
+                    @Override
+                    public void onResponseReceived(Response result) {
+                        published.countDown();
+                    }
+                });
+                assertTrue(published.await(5, TimeUnit.SECONDS));
+                assertTrue(responseTimed.await(5, TimeUnit.SECONDS));
+                assertEquals(Command.PERSIST, sent.get(0));
+                assertEquals(Command.PERSIST, responded.get(0));
+                assertEquals(1, router.getPersistedCount());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    private static String encode(PublishRequest request, String payload) throws IOException {
+        Frame.Builder builder = new Frame.Builder(Command.PUBLISH, 410);
+        BosswaveClient.addPublishHeaders(builder, request);
+        builder.addPayloadObject(new PayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}),
+                                                   payload.getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        builder.build().writeToStream(out);
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static String encode(ReusablePublishRequest request) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.writeToStream(out, 410);
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+}
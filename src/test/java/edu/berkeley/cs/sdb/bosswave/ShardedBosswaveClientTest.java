@@ -0,0 +1,248 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedBosswaveClientTest {
+    private static final PayloadObject.Type TEXT = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+
+    private MockRouter[] routers;
+    private ShardedBosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        routers = new MockRouter[3];
+        for (int i = 0; i < routers.length; i++) {
+            routers[i] = new MockRouter();
+            routers[i].start();
+        }
+        client = new ShardedBosswaveClient(2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        for (MockRouter router : routers) {
+            router.close();
+        }
+    }
+
+    @Test
+    public void testPrefixSelectsRouter() throws IOException {
+        addAllRouters();
+        Set<BosswaveClient> used = new HashSet<>();
+        for (int i = 0; i < 32; i++) {
+            // URIs sharing the first two segments share a router
+            assertSame(client.routerFor("a/" + i + "/x"), client.routerFor("a/" + i + "/y/z"));
+            used.add(client.routerFor("a/" + i));
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void testWildcardQueryAndListFanIn() throws IOException, InterruptedException {
+        addAllRouters();
+        persistAll(16);
+
+        final List<Response> responses = new CopyOnWriteArrayList<>();
+        ResponseHandler rh = new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                responses.add(result);
+            }
+        };
+        final List<Message> results = new CopyOnWriteArrayList<>();
+        final CountDownLatch queried = new CountDownLatch(1);
+        client.query(new QueryRequest.Builder("a/+/x").build(), rh, new QueryResultHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                results.add(message);
+            }
+
+            @Override
+            public void finish() {
+                queried.countDown();
+            }
+        });
+        assertTrue(queried.await(5, TimeUnit.SECONDS));
+        assertEquals(16, results.size());
+
+        // The mock router lists nothing under a wildcard, but every router must still finish
+        final CountDownLatch listed = new CountDownLatch(1);
+        client.list(new ListRequest.Builder("a/+").build(), rh, new ListResultHandler() {
+            @Override
+            public void onResult(String result) {
+            }
+
+            @Override
+            public void finish() {
+                listed.countDown();
+            }
+        });
+        assertTrue(listed.await(5, TimeUnit.SECONDS));
+
+        // One combined response per request, not one per router
+        assertEquals(2, responses.size());
+        assertEquals("okay", responses.get(0).getStatus());
+        assertEquals("okay", responses.get(1).getStatus());
+    }
+
+    @Test
+    public void testRejectedShardFinishesFanIn() throws IOException, InterruptedException {
+        addAllRouters();
+        persistAll(16);
+        routers[1].deny("a/");
+
+        final List<Response> responses = new CopyOnWriteArrayList<>();
+        final List<Message> results = new CopyOnWriteArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        client.query(new QueryRequest.Builder("a/+/x").build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                responses.add(result);
+            }
+        }, new QueryResultHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                results.add(message);
+            }
+
+            @Override
+            public void finish() {
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, responses.size());
+        assertFalse(responses.get(0).getStatus().equals("okay"));
+        assertTrue(results.size() < 16);
+    }
+
+    @Test
+    public void testRebalanceMovesSubscription() throws IOException, InterruptedException {
+        client.addRouter("localhost", routers[0].getPort());
+        // Find a prefix that a second router takes over
+        String uri = null;
+        BosswaveClient original = client.routerFor("b/0/x");
+        client.addRouter("localhost", routers[1].getPort());
+        for (int i = 0; uri == null; i++) {
+            if (client.routerFor("b/" + i + "/x") != original) {
+                uri = "b/" + i + "/x";
+            }
+        }
+        client.removeRouter("localhost", routers[1].getPort());
+
+        final List<Integer> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        client.subscribe(new SubscribeRequest.Builder(uri).build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                subscribed.countDown();
+            }
+        }, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.add((int) message.getPayloadObjects().get(0).getContent()[0]);
+            }
+        });
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+        BosswaveClient before = client.routerFor(uri);
+
+        client.addRouter("localhost", routers[1].getPort());
+        assertNotSame(before, client.routerFor(uri));
+        publish(uri, 1);
+        client.removeRouter("localhost", routers[1].getPort());
+        assertSame(before, client.routerFor(uri));
+        publish(uri, 2);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Returning to the first router reuses its subscription rather than adding a duplicate
+        Thread.sleep(100);
+        assertEquals(2, received.size());
+        assertTrue(received.contains(1));
+        assertTrue(received.contains(2));
+    }
+
+    @Test
+    public void testNoRoutersRejected() throws IOException, InterruptedException {
+        final List<Message> received = new CopyOnWriteArrayList<>();
+        MessageHandler mh = new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.add(message);
+            }
+        };
+        String[] uris = {"c/d/e", "c/+/e"};
+        for (String uri : uris) {
+            try {
+                client.subscribe(new SubscribeRequest.Builder(uri).build(), null, mh);
+                fail("Expected subscribe to fail without routers");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        }
+        try {
+            client.query(new QueryRequest.Builder("c/+/e").build(), null, mh);
+            fail("Expected query to fail without routers");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // The failed subscriptions are not made once a router is available
+        client.addRouter("localhost", routers[0].getPort());
+        publish("c/d/e", 1);
+        Thread.sleep(100);
+        assertTrue(received.isEmpty());
+    }
+
+    private void addAllRouters() throws IOException {
+        for (MockRouter router : routers) {
+            client.addRouter("localhost", router.getPort());
+        }
+    }
+
+    private void persistAll(int count) throws IOException, InterruptedException {
+        final CountDownLatch published = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            client.publish(new PublishRequest.Builder("a/" + i + "/x").setPersist(true)
+                    .addPayloadObject(new PayloadObject(TEXT, new byte[]{(byte) i})).build(), new ResponseHandler() {
+                @Override
+                public void onResponseReceived(Response result) {
+                    published.countDown();
+                }
+            });
+        }
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+    }
+
+    private void publish(String uri, int value) throws IOException, InterruptedException {
+        final CountDownLatch published = new CountDownLatch(1);
+        client.publish(new PublishRequest.Builder(uri)
+                .addPayloadObject(new PayloadObject(TEXT, new byte[]{(byte) value})).build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                published.countDown();
+            }
+        });
+        assertTrue(published.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,65 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SnapshotMergerTest {
+
+    private static Message makeMessage(String contents) {
+        PayloadObject.Type type = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+        PayloadObject po = new PayloadObject(type, contents.getBytes(StandardCharsets.UTF_8));
+        return new Message("from", "a/b", Collections.<RoutingObject>emptyList(), Collections.singletonList(po));
+    }
+
+    private static String contents(Message message) {
+        return new String(message.getPayloadObjects().get(0).getContent(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testMergeRemovesDuplicates() {
+        final List<String> received = new ArrayList<>();
+        SnapshotMerger merger = new SnapshotMerger(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.add(contents(message));
+            }
+        });
+        MessageHandler live = merger.getLiveHandler();
+
+        live.onResultReceived(makeMessage("one")); // Published before the query ran
+        live.onResultReceived(makeMessage("two")); // Published after the query ran
+        merger.onResultReceived(makeMessage("one"));
+        assertEquals(Collections.singletonList("one"), received);
+
+        merger.finish();
+        live.onResultReceived(makeMessage("three"));
+
+        List<String> expected = new ArrayList<>();
+        expected.add("one");
+        expected.add("two");
+        expected.add("three");
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        final List<String> received = new ArrayList<>();
+        SnapshotMerger merger = new SnapshotMerger(new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.add(contents(message));
+            }
+        });
+
+        merger.getLiveHandler().onResultReceived(makeMessage("one"));
+        assertEquals(0, received.size());
+        merger.finish();
+        assertEquals(Collections.singletonList("one"), received);
+    }
+}
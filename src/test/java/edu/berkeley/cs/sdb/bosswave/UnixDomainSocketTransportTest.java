@@ -0,0 +1,90 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UnixDomainSocketTransportTest {
+
+    private File socketFile;
+    private ServerSocketChannel server;
+    private Thread routerThread;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(UnixDomainSocketTransport.isSupported());
+        socketFile = File.createTempFile("bw2", ".sock");
+        socketFile.delete();
+        server = UnixDomainSocketTransport.listen(socketFile.getPath());
+
+        // A stand-in router that acknowledges the connection and accepts every publish
+        routerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SocketChannel channel = server.accept();
+                    InputStream in = new BufferedInputStream(new UnixDomainSocketTransport.ChannelInputStream(channel));
+                    OutputStream out = new UnixDomainSocketTransport.ChannelOutputStream(channel);
+                    new Frame.Builder(Command.HELLO, 0).build().writeToStream(out);
+                    while (true) {
+                        Frame request = Frame.readFromStream(in);
+                        Frame.Builder response = new Frame.Builder(Command.RESPONSE, request.getSeqNo());
+                        response.addKVPair("status", "okay");
+                        response.build().writeToStream(out);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The client has disconnected
+                }
+            }
+        });
+        routerThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (server != null) {
+            server.close();
+            routerThread.join(1000);
+            socketFile.delete();
+        }
+    }
+
+    @Test
+    public void testPublishOverSocketFile() throws IOException, InterruptedException {
+        final Semaphore sem = new Semaphore(0);
+        final String[] status = new String[1];
+        BosswaveClient client = new BosswaveClient(new UnixDomainSocketTransport(socketFile.getPath()));
+        client.connect();
+
+        PublishRequest request = new PublishRequest.Builder("castle.bw2.io/foo/bar")
+                .addPayloadObject(new PayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}),
+                                                    "Hello, World!".getBytes(StandardCharsets.UTF_8)))
+                .build();
+        client.publish(request, new ResponseHandler() {
+            @Override
+            public void onResponseReceived(Response result) {
+                status[0] = result.getStatus();
+                sem.release();
+            }
+        });
+
+        assertTrue(sem.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals("okay", status[0]);
+        client.close();
+    }
+}
@@ -0,0 +1,32 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UriMatcherTest {
+
+    @Test
+    public void testExactMatch() {
+        assertTrue(UriMatcher.matches("castle.bw2.io/foo/bar", "castle.bw2.io/foo/bar"));
+        assertFalse(UriMatcher.matches("castle.bw2.io/foo/bar", "castle.bw2.io/foo"));
+        assertFalse(UriMatcher.matches("castle.bw2.io/foo", "castle.bw2.io/foo/bar"));
+    }
+
+    @Test
+    public void testSingleSegmentWildcard() {
+        assertTrue(UriMatcher.matches("castle.bw2.io/+/bar", "castle.bw2.io/foo/bar"));
+        assertFalse(UriMatcher.matches("castle.bw2.io/+/bar", "castle.bw2.io/bar"));
+        assertFalse(UriMatcher.matches("castle.bw2.io/+", "castle.bw2.io/foo/bar"));
+    }
+
+    @Test
+    public void testMultiSegmentWildcard() {
+        assertTrue(UriMatcher.matches("castle.bw2.io/*", "castle.bw2.io/foo/bar"));
+        assertTrue(UriMatcher.matches("castle.bw2.io/*", "castle.bw2.io"));
+        assertTrue(UriMatcher.matches("castle.bw2.io/*/bar", "castle.bw2.io/a/b/bar"));
+        assertTrue(UriMatcher.matches("castle.bw2.io/*/bar", "castle.bw2.io/bar"));
+        assertFalse(UriMatcher.matches("castle.bw2.io/*/bar", "castle.bw2.io/a/b/baz"));
+    }
+}
@@ -0,0 +1,167 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WireCaptureTest {
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{1, 0, 0, 0});
+    private static final int MESSAGES = 20;
+
+    private File directory;
+    private File base;
+    private MockRouter router;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("capture").toFile();
+        base = new File(directory, "session");
+        router = new MockRouter();
+        router.start();
+
+        // Capture a subscriber receiving its own publishes, with segments small enough to roll over
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        WireCapture capture = new WireCapture(base, 4096);
+        client.startCapture(capture);
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+        client.subscribe(new SubscribeRequest.Builder("a/b").build(), null, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                received.countDown();
+            }
+        });
+        for (int i = 0; i < MESSAGES; i++) {
+            client.publish(new PublishRequest.Builder("a/b").addPayloadObject(payload(i)).build(), null);
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        client.stopCapture();
+        capture.close();
+        client.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        router.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReadCapture() throws IOException {
+        assertTrue(WireCapture.segmentFile(base, 1).exists());
+
+        List<Command> sent = new ArrayList<>();
+        int results = 0;
+        try (WireCaptureReader reader = new WireCaptureReader(base)) {
+            CapturedFrame captured;
+            long last = 0;
+            while ((captured = reader.next()) != null) {
+                assertTrue(captured.getTimestampNanos() >= last);
+                last = captured.getTimestampNanos();
+                Frame frame = Frame.readFromStream(new ByteArrayInputStream(captured.getBytes()));
+                if (!captured.isInbound()) {
+                    sent.add(frame.getCommand());
+                } else if (frame.getCommand() == Command.RESULT) {
+                    assertArrayEquals(payload(results).getContent(), frame.getPayloadObjects().get(0).getContent());
+                    results++;
+                }
+            }
+        }
+        assertEquals(MESSAGES + 1, sent.size());
+        assertEquals(Command.SUBSCRIBE, sent.get(0));
+        assertEquals(MESSAGES, results);
+    }
+
+    @Test
+    public void testReplayIntoClient() throws IOException, InterruptedException {
+        BosswaveClient client = new BosswaveClient(new WireReplayer(base, 0).asTransport());
+        client.connect();
+        final List<byte[]> contents = new ArrayList<>();
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+        client.subscribe(new SubscribeRequest.Builder("a/b").build(), null, new MessageHandler() {
+            @Override
+            public void onResultReceived(Message message) {
+                contents.add(message.getPayloadObjects().get(0).getContent());
+                received.countDown();
+            }
+        });
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        client.close();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            assertTrue(Arrays.equals(payload(i).getContent(), contents.get(i)));
+        }
+    }
+
+    @Test
+    public void testReplayToRouter() throws IOException, InterruptedException {
+        MockRouter target = new MockRouter();
+        target.start();
+        try {
+            assertEquals(MESSAGES + 1, new WireReplayer(base, 0).replayToRouter("localhost", target.getPort()));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void testSegmentFailureLeavesConnectionUp() throws IOException, InterruptedException {
+        File failing = new File(directory, "failing");
+        // A directory where the second segment belongs, so that it cannot be created
+        assertTrue(WireCapture.segmentFile(failing, 1).mkdir());
+        final List<IOException> failures = new CopyOnWriteArrayList<>();
+        WireCapture capture = new WireCapture(failing, 4096).setFailureListener(new WireCapture.FailureListener() {
+            @Override
+            public void onCaptureFailed(WireCapture capture, IOException e) {
+                failures.add(e);
+            }
+        });
+
+        BosswaveClient client = new BosswaveClient("localhost", router.getPort());
+        client.connect();
+        try {
+            client.startCapture(capture);
+            final CountDownLatch received = new CountDownLatch(MESSAGES);
+            client.subscribe(new SubscribeRequest.Builder("a/c").build(), null, new MessageHandler() {
+                @Override
+                public void onResultReceived(Message message) {
+                    received.countDown();
+                }
+            });
+            for (int i = 0; i < MESSAGES; i++) {
+                client.publish(new PublishRequest.Builder("a/c").addPayloadObject(payload(i)).build(), null);
+            }
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertTrue(client.isConnected());
+            assertEquals(1, failures.size());
+            assertTrue(capture.getFailure() == failures.get(0));
+        } finally {
+            client.close();
+            capture.close();
+        }
+    }
+
+    private static PayloadObject payload(int i) {
+        byte[] content = new byte[300];
+        Arrays.fill(content, (byte) i);
+        return new PayloadObject(TYPE, content);
+    }
+}